@@ -0,0 +1,192 @@
+package thyeway.xyz.activitytracker;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Sends the locally stored readings to an access point (Pi)
+ * <p/>
+ * The backlog is read in rowid order, one page at a time. Pages are sent back to back without
+ * waiting for the previous one to be confirmed (the connection's send window bounds how many are
+ * in flight), and the rows of a page are deleted, by rowid range and in a single transaction,
+ * once the page is confirmed. If the connection goes down part way, the unconfirmed pages simply
+ * stay in the database for the next drain.
+ * <p/>
+ * Pages are asked to be sent compressed, stored readings are very repetitive. The connection
+ * only does so if the access point agreed to it.
+ */
+public class BacklogDrain {
+
+    // debug use
+    private static final String TAG = "BacklogDrain";
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private final PacketStore mStore;
+    private final RelayConnection mConnection;
+    private final int mPageSize;
+
+    // pages sent but not confirmed or failed yet
+    private int mPending;
+    private boolean mFailed;
+
+    /**
+     * Outcome of a page, deletes its rows once confirmed
+     */
+    private class Page implements SendWindow.Batch {
+        final long first;
+        final long last;
+
+        Page(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        public void onAcked() {
+            mStore.deleteRange(first, last);
+            Log.i(TAG, "Sent rows " + first + " to " + last);
+            finished(false);
+        }
+
+        @Override
+        public void onFailed() {
+            finished(true);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param store      store holding the backlog
+     * @param connection connection to send the backlog over
+     * @param pageSize   number of rows read, sent and deleted at a time
+     */
+    public BacklogDrain(PacketStore store, RelayConnection connection, int pageSize) {
+        mStore = store;
+        mConnection = connection;
+        mPageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Send and delete the whole backlog, page by page
+     *
+     * @return number of rows sent
+     * @throws IOException if the connection went down, rows not yet confirmed are kept
+     */
+    public int drain() throws IOException {
+        synchronized (this) {
+            mPending = 0;
+            mFailed = false;
+        }
+
+        int sent = 0;
+        while (true) {
+            int rows = drainPass();
+            awaitPages();
+            // rows stored while the pass was running may have reused row ids of rows deleted behind
+            // it, keep going from the start until a pass finds nothing left
+            if (rows == 0) {
+                return sent;
+            }
+            sent += rows;
+        }
+    }
+
+    /**
+     * Send every row once, oldest first, without waiting for confirmation
+     *
+     * @return number of rows sent
+     */
+    private int drainPass() throws IOException {
+        PacketCodec codec = mConnection.getCodec();
+        byte[] page = new byte[mPageSize * codec.maxRecordLength()];
+
+        int sent = 0;
+        long after = 0;
+        while (true) {
+            synchronized (this) {
+                if (mFailed) {
+                    throw new IOException("Connection lost while draining");
+                }
+            }
+
+            long first = -1;
+            long last = -1;
+            int length = 0;
+            int rows = 0;
+
+            Cursor c = mStore.queryPage(after, mPageSize);
+            try {
+                while (c.moveToNext()) {
+                    if (first < 0) {
+                        first = PacketStore.readId(c);
+                    }
+                    last = PacketStore.readId(c);
+                    Reading reading = PacketStore.readReading(c);
+                    length += codec.encode(reading, page, length);
+                    reading.recycle();
+                    rows++;
+                }
+            } finally {
+                c.close();
+            }
+
+            if (rows == 0) {
+                return sent;
+            }
+
+            synchronized (this) {
+                mPending++;
+            }
+            // the page buffer can be reused as soon as this returns
+            mConnection.send(page, 0, length, new Page(first, last), true);
+
+            after = last;
+            sent += rows;
+        }
+    }
+
+    private synchronized void finished(boolean failed) {
+        mPending--;
+        mFailed |= failed;
+        notifyAll();
+    }
+
+    /**
+     * Wait until every page sent has been confirmed or failed, for at most the write timeout
+     */
+    private void awaitPages() throws IOException {
+        long timeout = mConnection.getWriteTimeout();
+        boolean timedOut = false;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (mPending > 0 && !timedOut) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        timedOut = true;
+                    } else {
+                        wait(wait);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for confirmation");
+            }
+        }
+
+        if (timedOut) {
+            // outside the lock, closing fails the outstanding pages through finished()
+            mConnection.close();
+            throw new IOException("No confirmation within " + timeout + "ms");
+        }
+        synchronized (this) {
+            if (mFailed) {
+                throw new IOException("Connection lost while draining");
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Compact binary wire format, a length-prefixed record per reading
+ * <p/>
+ * Every connection starts with a preamble of MAGIC followed by VERSION, so the access point (Pi)
+ * can tell it apart from the text format. Each record is big-endian:
+ * <pre>
+ *   u8  length of the rest of the record
+ *   u8  record version
+ *   u8  sensor type
+ *   u8  device id
+ *   f32 value
+ *   u16 sequence number
+ *   u32 timestamp, seconds since epoch
+ * </pre>
+ */
+public class BinaryPacketCodec implements PacketCodec {
+
+    public static final byte[] MAGIC = {'R', 'B'};
+    public static final int VERSION = 1;
+
+    // length byte + version + type + id + value + sequence + timestamp
+    public static final int RECORD_LENGTH = 1 + 1 + 1 + 1 + 4 + 2 + 4;
+
+    @Override
+    public byte[] preamble() {
+        return new byte[]{MAGIC[0], MAGIC[1], VERSION};
+    }
+
+    @Override
+    public int maxRecordLength() {
+        return RECORD_LENGTH;
+    }
+
+    @Override
+    public int encode(Reading reading, byte[] buffer, int offset) {
+        int value = Float.floatToIntBits(reading.value);
+        long timestamp = reading.timestamp;
+
+        buffer[offset] = (byte) (RECORD_LENGTH - 1);
+        buffer[offset + 1] = (byte) VERSION;
+        buffer[offset + 2] = (byte) reading.sensor_type;
+        buffer[offset + 3] = (byte) reading.device_id;
+        buffer[offset + 4] = (byte) (value >> 24);
+        buffer[offset + 5] = (byte) (value >> 16);
+        buffer[offset + 6] = (byte) (value >> 8);
+        buffer[offset + 7] = (byte) value;
+        buffer[offset + 8] = (byte) (reading.sequence_number >> 8);
+        buffer[offset + 9] = (byte) reading.sequence_number;
+        buffer[offset + 10] = (byte) (timestamp >> 24);
+        buffer[offset + 11] = (byte) (timestamp >> 16);
+        buffer[offset + 12] = (byte) (timestamp >> 8);
+        buffer[offset + 13] = (byte) timestamp;
+
+        return RECORD_LENGTH;
+    }
+}
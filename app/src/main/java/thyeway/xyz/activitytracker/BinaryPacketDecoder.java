@@ -0,0 +1,78 @@
+package thyeway.xyz.activitytracker;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stream written in the BinaryPacketCodec format, for use on the access point (Pi) and in tests
+ * <p/>
+ * Does not depend on anything Android specific.
+ */
+public class BinaryPacketDecoder {
+
+    private final DataInputStream mInput;
+    private boolean mPreambleRead = false;
+
+    public BinaryPacketDecoder(InputStream input) {
+        mInput = new DataInputStream(input);
+    }
+
+    /**
+     * Read and check the preamble at the start of the stream
+     *
+     * @return version announced by the sender
+     * @throws IOException if the stream does not start with the binary format preamble
+     */
+    public int readPreamble() throws IOException {
+        if (mInput.readUnsignedByte() != BinaryPacketCodec.MAGIC[0]
+                || mInput.readUnsignedByte() != BinaryPacketCodec.MAGIC[1]) {
+            throw new IOException("Not a binary packet stream");
+        }
+        int version = mInput.readUnsignedByte();
+        if (version > BinaryPacketCodec.VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        mPreambleRead = true;
+        return version;
+    }
+
+    /**
+     * Read the next record, records with a newer version are skipped using their length prefix
+     *
+     * @return the next reading, or null at the end of the stream
+     * @throws IOException if the stream is malformed
+     */
+    public Reading read() throws IOException {
+        if (!mPreambleRead) {
+            readPreamble();
+        }
+
+        while (true) {
+            int length;
+            try {
+                length = mInput.readUnsignedByte();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            int version = mInput.readUnsignedByte();
+            if (version != BinaryPacketCodec.VERSION) {
+                mInput.skipBytes(length - 1);
+                continue;
+            }
+            if (length != BinaryPacketCodec.RECORD_LENGTH - 1) {
+                throw new IOException("Bad record length " + length);
+            }
+
+            int type = mInput.readUnsignedByte();
+            int id = mInput.readUnsignedByte();
+            float value = mInput.readFloat();
+            int sequence = mInput.readUnsignedShort();
+            long timestamp = mInput.readInt() & 0xFFFFFFFFL;
+
+            return new Reading(SensorType.tagOf(type), type, id, value, sequence, timestamp);
+        }
+    }
+}
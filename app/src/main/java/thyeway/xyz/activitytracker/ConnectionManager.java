@@ -0,0 +1,531 @@
+package thyeway.xyz.activitytracker;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the phone's Bluetooth connection slots among the tracked sensors
+ * <p/>
+ * A phone holds only a handful of LE connections at once. As long as there are no more tracked
+ * sensors than slots, every sensor simply stays connected. Once there are more, the sensors with
+ * a priority above 0 keep a slot (highest first, leaving at least one slot free), and the others
+ * take turns on the remaining slots, round-robin: connect, read or stream for one turn,
+ * disconnect, and the next sensor in line gets the slot. Turns and reconnects with backoff are
+ * direct connects, bounded by the connect timeout, only a background connect waits without one.
+ * <p/>
+ * A connection that drops on its own, or a connect that does not complete in time, is retried
+ * with backoff, see SensorConnection for the states a sensor goes through.
+ * <p/>
+ * The connection callbacks have to be forwarded through onConnected(), onReady() and
+ * onDisconnected().
+ */
+public class ConnectionManager {
+
+    /**
+     * Opens and closes the Bluetooth connections, never called while the manager is locked
+     */
+    public interface Connector {
+
+        /**
+         * @param mac        MAC of the sensor to connect to, onConnected() follows once it is
+         * @param background true to connect whenever the sensor comes in range, without a timeout
+         */
+        void connect(String mac, boolean background);
+
+        /**
+         * @param mac MAC of the sensor to disconnect from, onDisconnected() may follow
+         */
+        void disconnect(String mac);
+    }
+
+    // debug use
+    private static final String TAG = "ConnectionManager";
+
+    private static final Comparator<SensorConnection> BY_PRIORITY = new Comparator<SensorConnection>() {
+        @Override
+        public int compare(SensorConnection a, SensorConnection b) {
+            return b.priority < a.priority ? -1 : (b.priority == a.priority ? 0 : 1);
+        }
+    };
+
+    private final Connector mConnector;
+    private final ScheduledExecutorService mTimer;
+
+    private final Random mRandom = new Random();
+
+    private int mSlots;
+    private long mTurn;
+    private long mConnectTimeout;
+    private int mMaxAttempts = 5;
+    private boolean mBackground = true;
+
+    // backoff between reconnect attempts, see ReconnectScheduler.backoffDelay()
+    private long mBackoffBase = 1000;
+    private long mBackoffMax = 60000;
+    private float mBackoffJitter = 0.5f;
+
+    // tracked sensors, by MAC, and the ones waiting for a slot, in turn order
+    private final LinkedHashMap<String, SensorConnection> mConnections = new LinkedHashMap<>();
+    private final ArrayDeque<SensorConnection> mWaiting = new ArrayDeque<>();
+
+    /**
+     * Constructor
+     *
+     * @param connector      opens and closes the connections
+     * @param timer          timer for the turns, connect timeouts and backoff
+     * @param slots          maximum number of connections at once
+     * @param turn           how long a sensor keeps its slot when sensors take turns, in milliseconds
+     * @param connectTimeout how long to wait for a connection, other than in the background, in milliseconds
+     */
+    public ConnectionManager(Connector connector, ScheduledExecutorService timer, int slots, long turn, long connectTimeout) {
+        mConnector = connector;
+        mTimer = timer;
+        configure(slots, turn, connectTimeout);
+    }
+
+    /**
+     * @param slots          maximum number of connections at once
+     * @param turn           how long a sensor keeps its slot when sensors take turns, in milliseconds
+     * @param connectTimeout how long to wait for a connection, other than in the background, in milliseconds
+     */
+    public void configure(int slots, long turn, long connectTimeout) {
+        synchronized (this) {
+            mSlots = Math.max(1, slots);
+            mTurn = Math.max(1, turn);
+            mConnectTimeout = Math.max(1, connectTimeout);
+        }
+        rebalance();
+    }
+
+    /**
+     * @param maxAttempts reconnect attempts with backoff after a connection dropped
+     * @param background  true to then keep connecting in the background, false to give up
+     */
+    public synchronized void setReconnect(int maxAttempts, boolean background) {
+        mMaxAttempts = Math.max(0, maxAttempts);
+        mBackground = background;
+    }
+
+    /**
+     * Update the backoff between reconnect attempts, takes effect from the next attempt
+     *
+     * @param baseDelay delay before the first attempt, doubled after every failed one, in milliseconds
+     * @param maxDelay  ceiling for the delay between attempts, in milliseconds
+     * @param jitter    fraction (0 to 1) by which each delay is randomly shortened, so sensors
+     *                  that dropped together do not retry together
+     */
+    public synchronized void setBackoff(long baseDelay, long maxDelay, float jitter) {
+        mBackoffBase = Math.max(1, baseDelay);
+        mBackoffMax = Math.max(mBackoffBase, maxDelay);
+        mBackoffJitter = Math.max(0f, Math.min(1f, jitter));
+    }
+
+    /**
+     * Track a sensor, or update its priority if it is tracked already
+     * A tracked sensor that is not connected and not waiting, e.g. because it was lost, is put
+     * back in line.
+     *
+     * @param mac      MAC of the sensor
+     * @param priority higher is connected first, above 0 keeps its slot when sensors take turns
+     */
+    public void track(String mac, int priority) {
+        synchronized (this) {
+            SensorConnection connection = mConnections.get(mac);
+            if (connection == null) {
+                connection = new SensorConnection(mac, priority);
+                mConnections.put(mac, connection);
+            }
+            connection.priority = priority;
+            if (connection.state == SensorConnection.State.IDLE || connection.state == SensorConnection.State.LOST) {
+                connection.attempts = 0;
+                connection.state = SensorConnection.State.WAITING;
+                mWaiting.addLast(connection);
+            }
+        }
+        rebalance();
+    }
+
+    /**
+     * Stop tracking a sensor, its connection is closed and its slot goes to the next one in line
+     *
+     * @param mac MAC of the sensor
+     */
+    public void untrack(String mac) {
+        SensorConnection connection;
+        synchronized (this) {
+            connection = mConnections.remove(mac);
+            if (connection == null) {
+                return;
+            }
+            mWaiting.remove(connection);
+            cancelTimer(connection);
+        }
+        if (connection.state.holdsSlot()) {
+            mConnector.disconnect(mac);
+        }
+        rebalance();
+    }
+
+    /**
+     * To be called once a sensor is connected, before its services are set up
+     *
+     * @param mac MAC of the sensor
+     * @return true if the sensor holds a slot, false if it was disconnected again
+     */
+    public boolean onConnected(String mac) {
+        synchronized (this) {
+            SensorConnection connection = mConnections.get(mac);
+            if (connection != null && connection.state == SensorConnection.State.CONNECTING) {
+                cancelTimer(connection);
+                long now = System.currentTimeMillis();
+                if (connection.disconnectedSince > 0) {
+                    connection.disconnectedTime += now - connection.disconnectedSince;
+                    connection.disconnectedSince = 0;
+                    Log.i(TAG, "Reconnected " + mac + " after " + connection.attempts + " failed attempts");
+                }
+                connection.state = SensorConnection.State.DISCOVERING;
+                connection.connectedSince = now;
+                connection.attempts = 0;
+                connection.background = false;
+                connection.turns++;
+                if (takingTurns() && !connection.pinned) {
+                    scheduleRelease(connection);
+                }
+                return true;
+            }
+        }
+        // a late connection, e.g. after the connect timed out or the sensor was untracked
+        mConnector.disconnect(mac);
+        return false;
+    }
+
+    /**
+     * To be called once a connected sensor's services are set up and readings are on their way
+     *
+     * @param mac MAC of the sensor
+     */
+    public synchronized void onReady(String mac) {
+        SensorConnection connection = mConnections.get(mac);
+        if (connection != null && connection.state == SensorConnection.State.DISCOVERING) {
+            connection.state = SensorConnection.State.STREAMING;
+        }
+    }
+
+    /**
+     * To be called once a sensor is disconnected, or failed to connect, whether asked to or not
+     *
+     * @param mac MAC of the sensor
+     */
+    public void onDisconnected(String mac) {
+        synchronized (this) {
+            SensorConnection connection = mConnections.get(mac);
+            if (connection == null) {
+                return;
+            }
+            freeSlot(connection);
+        }
+        rebalance();
+    }
+
+    /**
+     * To be called for every reading received from a sensor
+     *
+     * @param mac MAC of the sensor
+     */
+    public void onReading(String mac) {
+        onReadings(mac, 1);
+    }
+
+    /**
+     * @param mac   MAC of the sensor that produced a batch of readings
+     * @param count number of readings
+     */
+    public synchronized void onReadings(String mac, int count) {
+        SensorConnection connection = mConnections.get(mac);
+        if (connection != null) {
+            connection.readings += count;
+        }
+    }
+
+    private void freeSlot(SensorConnection connection) {
+        if (!connection.state.holdsSlot()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (connection.state.isConnected()) {
+            connection.connectedTime += now - connection.connectedSince;
+            if (!connection.releasing) {
+                connection.drops++;
+                connection.disconnectedSince = now;
+            }
+        }
+        cancelTimer(connection);
+        if (connection.releasing || takingTurns()) {
+            // back of the line for its next turn
+            connection.state = SensorConnection.State.WAITING;
+            mWaiting.addLast(connection);
+        } else {
+            backOff(connection);
+        }
+        connection.releasing = false;
+    }
+
+    /**
+     * Retry a connection that dropped or could not be made, after a growing delay
+     */
+    private void backOff(final SensorConnection connection) {
+        if (connection.attempts >= mMaxAttempts) {
+            if (mBackground) {
+                // let the connection complete whenever the sensor is back in range
+                Log.i(TAG, "Reconnecting in the background: " + connection.mac);
+                connection.background = true;
+                connection.state = SensorConnection.State.WAITING;
+                mWaiting.addFirst(connection);
+            } else {
+                Log.i(TAG, "Lost: " + connection.mac);
+                connection.state = SensorConnection.State.LOST;
+            }
+            return;
+        }
+
+        long delay = ReconnectScheduler.backoffDelay(connection.attempts, mBackoffBase, mBackoffMax, mBackoffJitter, mRandom);
+        connection.attempts++;
+
+        Log.i(TAG, "Reconnect attempt " + connection.attempts + " for " + connection.mac + " in " + delay + "ms");
+        connection.state = SensorConnection.State.BACKOFF;
+        connection.timer = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                backedOff(connection);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void backedOff(SensorConnection connection) {
+        synchronized (this) {
+            connection.timer = null;
+            if (connection.state != SensorConnection.State.BACKOFF || mConnections.get(connection.mac) != connection) {
+                return;
+            }
+            connection.state = SensorConnection.State.WAITING;
+            mWaiting.addFirst(connection);
+        }
+        rebalance();
+    }
+
+    /**
+     * Hand the free slots to the sensors waiting for one, and start or stop taking turns
+     */
+    private void rebalance() {
+        List<SensorConnection> connect = new ArrayList<>();
+        synchronized (this) {
+            updatePinned();
+            int used = 0;
+            for (SensorConnection connection : mConnections.values()) {
+                if (connection.state.holdsSlot()) {
+                    used++;
+                    if (connection.state.isConnected() && connection.timer == null
+                            && takingTurns() && !connection.pinned) {
+                        // sensors have started taking turns, this one's turn starts now
+                        scheduleRelease(connection);
+                    }
+                }
+            }
+            while (used < mSlots && !mWaiting.isEmpty()) {
+                SensorConnection next = nextInLine();
+                next.state = SensorConnection.State.CONNECTING;
+                // a background connection would hold on to a slot others are taking turns on
+                next.background &= !takingTurns();
+                if (!next.background) {
+                    scheduleConnectTimeout(next);
+                }
+                connect.add(next);
+                used++;
+            }
+        }
+        for (SensorConnection connection : connect) {
+            Log.i(TAG, "Connecting " + connection.mac + (connection.background ? " in the background" : ""));
+            mConnector.connect(connection.mac, connection.background);
+        }
+    }
+
+    private boolean takingTurns() {
+        return mConnections.size() > mSlots;
+    }
+
+    /**
+     * Pin the highest priority sensors to their slots, leaving at least one slot to take turns on
+     */
+    private void updatePinned() {
+        List<SensorConnection> sorted = new ArrayList<>(mConnections.values());
+        Collections.sort(sorted, BY_PRIORITY);
+        int pinned = 0;
+        for (SensorConnection connection : sorted) {
+            connection.pinned = takingTurns() && connection.priority > 0 && pinned < mSlots - 1;
+            if (connection.pinned) {
+                pinned++;
+                if (connection.timer != null && connection.state.isConnected()) {
+                    cancelTimer(connection);
+                }
+            }
+        }
+        if (!takingTurns()) {
+            for (SensorConnection connection : mConnections.values()) {
+                if (connection.state.isConnected()) {
+                    cancelTimer(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the pinned sensor waiting for a slot, if any, otherwise the next one in line
+     */
+    private SensorConnection nextInLine() {
+        Iterator<SensorConnection> waiting = mWaiting.iterator();
+        while (waiting.hasNext()) {
+            SensorConnection connection = waiting.next();
+            if (connection.pinned) {
+                waiting.remove();
+                return connection;
+            }
+        }
+        return mWaiting.pollFirst();
+    }
+
+    private void scheduleRelease(final SensorConnection connection) {
+        connection.timer = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                release(connection);
+            }
+        }, mTurn, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleConnectTimeout(final SensorConnection connection) {
+        connection.timer = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectTimedOut(connection);
+            }
+        }, mConnectTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimer(SensorConnection connection) {
+        if (connection.timer != null) {
+            connection.timer.cancel(false);
+            connection.timer = null;
+        }
+    }
+
+    /**
+     * End a sensor's turn, unless nobody is waiting for its slot
+     */
+    private void release(SensorConnection connection) {
+        synchronized (this) {
+            connection.timer = null;
+            if (!connection.state.isConnected() || mConnections.get(connection.mac) != connection) {
+                return;
+            }
+            if (mWaiting.isEmpty()) {
+                scheduleRelease(connection);
+                return;
+            }
+            connection.releasing = true;
+        }
+        Log.i(TAG, "Turn over: " + connection.mac);
+        mConnector.disconnect(connection.mac);
+    }
+
+    private void connectTimedOut(SensorConnection connection) {
+        synchronized (this) {
+            connection.timer = null;
+            if (connection.state != SensorConnection.State.CONNECTING || mConnections.get(connection.mac) != connection) {
+                return;
+            }
+            // out of range, give up on this attempt, the slot goes to the next sensor in line
+            freeSlot(connection);
+        }
+        Log.i(TAG, "Connect timed out: " + connection.mac);
+        mConnector.disconnect(connection.mac);
+        rebalance();
+    }
+
+    /**
+     * @return number of sensors connected or connecting
+     */
+    public synchronized int connections() {
+        int used = 0;
+        for (SensorConnection connection : mConnections.values()) {
+            if (connection.state.holdsSlot()) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @param mac MAC of the sensor
+     * @return state of the sensor's connection, null if it is not tracked
+     */
+    public synchronized SensorConnection.State getState(String mac) {
+        SensorConnection connection = mConnections.get(mac);
+        return connection == null ? null : connection.state;
+    }
+
+    /**
+     * @return readings received per second by each tracked sensor, by MAC
+     */
+    public synchronized Map<String, Double> getSampleRates() {
+        HashMap<String, Double> rates = new HashMap<>();
+        for (SensorConnection connection : mConnections.values()) {
+            rates.put(connection.mac, connection.getSampleRate());
+        }
+        return rates;
+    }
+
+    /**
+     * @return fraction of the time each tracked sensor was connected, by MAC
+     */
+    public synchronized Map<String, Double> getConnectedShares() {
+        HashMap<String, Double> shares = new HashMap<>();
+        for (SensorConnection connection : mConnections.values()) {
+            shares.put(connection.mac, connection.getConnectedShare());
+        }
+        return shares;
+    }
+
+    /**
+     * @return time each tracked sensor spent disconnected after its connection dropped, by MAC, in milliseconds
+     */
+    public synchronized Map<String, Long> getDisconnectedTimes() {
+        HashMap<String, Long> times = new HashMap<>();
+        for (SensorConnection connection : mConnections.values()) {
+            times.put(connection.mac, connection.getDisconnectedTime());
+        }
+        return times;
+    }
+
+    /**
+     * Stop every timer and forget the tracked sensors, the connections are left to the caller
+     */
+    public synchronized void shutdown() {
+        for (SensorConnection connection : mConnections.values()) {
+            cancelTimer(connection);
+        }
+        mConnections.clear();
+        mWaiting.clear();
+    }
+}
@@ -17,6 +17,15 @@ public class DatabaseContract {
     public static class DatabaseEntry implements BaseColumns {
         /* PACKETS TABLE */
         public static final String TABLE_PACKETS = "packets";
+        public static final String SENSOR_MAC = "sensor_mac";
+        public static final String SENSOR_TYPE = "sensor_type";
+        public static final String DEVICE_ID = "device_id";
+        public static final String SEQUENCE_NUMBER = "sequence_number";
+        public static final String TIMESTAMP = "timestamp";
+        public static final String VALUE = "value";
+        public static final String INDEX_PACKETS_TIMESTAMP = "packets_timestamp";
+
+        /* PACKETS TABLE, version 1: one text packet per row */
         public static final String PACKET_DATA = "data";
     }
 
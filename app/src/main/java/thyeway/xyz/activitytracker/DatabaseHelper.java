@@ -1,8 +1,11 @@
 package thyeway.xyz.activitytracker;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
 import static thyeway.xyz.activitytracker.DatabaseContract.DatabaseEntry;
 
@@ -11,21 +14,56 @@ import static thyeway.xyz.activitytracker.DatabaseContract.DatabaseEntry;
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    // debug use
+    private static final String TAG = "DatabaseHelper";
+
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "activity.db";
 
     // SQL CREATE statement syntax, for consistency
     private static final String CREATE_TABLE = "CREATE TABLE ";
+    private static final String CREATE_INDEX = "CREATE INDEX ";
     private static final String TEXT_TYPE = " TEXT";
+    private static final String INTEGER_TYPE = " INTEGER";
+    private static final String REAL_TYPE = " REAL";
+    private static final String PRIMARY_KEY = " PRIMARY KEY";
     private static final String NOT_NULL = " NOT NULL";
+    private static final String COMMA = ", ";
 
-    // CREATE statement for Packets table
+    // CREATE statement for Packets table, _id is an alias of the rowid the backlog is drained by
     private static final String SQL_CREATE_PACKETS_TABLE =
             CREATE_TABLE + DatabaseEntry.TABLE_PACKETS + " (" +
-                    DatabaseEntry.PACKET_DATA + TEXT_TYPE + NOT_NULL + ")";
+                    DatabaseEntry._ID + INTEGER_TYPE + PRIMARY_KEY + COMMA +
+                    DatabaseEntry.SENSOR_MAC + TEXT_TYPE + COMMA +
+                    DatabaseEntry.SENSOR_TYPE + INTEGER_TYPE + NOT_NULL + COMMA +
+                    DatabaseEntry.DEVICE_ID + INTEGER_TYPE + NOT_NULL + COMMA +
+                    DatabaseEntry.SEQUENCE_NUMBER + INTEGER_TYPE + NOT_NULL + COMMA +
+                    DatabaseEntry.TIMESTAMP + INTEGER_TYPE + NOT_NULL + COMMA +
+                    DatabaseEntry.VALUE + REAL_TYPE + NOT_NULL + ")";
+
+    // CREATE statement for the timestamp index of the Packets table
+    private static final String SQL_CREATE_PACKETS_TIMESTAMP_INDEX =
+            CREATE_INDEX + DatabaseEntry.INDEX_PACKETS_TIMESTAMP + " ON " +
+                    DatabaseEntry.TABLE_PACKETS + " (" + DatabaseEntry.TIMESTAMP + ")";
+
+    // INSERT statement for Packets table, shared with PacketStore
+    static final String SQL_INSERT_PACKET =
+            "INSERT INTO " + DatabaseEntry.TABLE_PACKETS + " (" +
+                    DatabaseEntry.SENSOR_MAC + COMMA +
+                    DatabaseEntry.SENSOR_TYPE + COMMA +
+                    DatabaseEntry.DEVICE_ID + COMMA +
+                    DatabaseEntry.SEQUENCE_NUMBER + COMMA +
+                    DatabaseEntry.TIMESTAMP + COMMA +
+                    DatabaseEntry.VALUE + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    // version 1 Packets table is renamed out of the way while its rows are migrated
+    private static final String TABLE_PACKETS_V1 = DatabaseEntry.TABLE_PACKETS + "_v1";
+    private static final String SQL_RENAME_PACKETS_V1 =
+            "ALTER TABLE " + DatabaseEntry.TABLE_PACKETS + " RENAME TO " + TABLE_PACKETS_V1;
 
-    // DROP statement for Motion table
+    // DROP statement for Packets table
     private static final String SQL_DELETE_PACKETS = "DROP TABLE IF EXISTS " + DatabaseEntry.TABLE_PACKETS;
+    private static final String SQL_DELETE_PACKETS_V1 = "DROP TABLE IF EXISTS " + TABLE_PACKETS_V1;
 
     /**
      * Constructor
@@ -36,20 +74,62 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // readers (backlog drain) do not block the writer (relay worker) and vice versa
+        db.enableWriteAheadLogging();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
-        System.out.println(SQL_CREATE_PACKETS_TABLE);
+        Log.d(TAG, SQL_CREATE_PACKETS_TABLE);
         db.execSQL(SQL_CREATE_PACKETS_TABLE);
+        db.execSQL(SQL_CREATE_PACKETS_TIMESTAMP_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_PACKETS);
-        onCreate(db);
+        if (oldVersion == 1) {
+            // already runs inside a transaction
+            db.execSQL(SQL_RENAME_PACKETS_V1);
+            onCreate(db);
+            migratePacketsV1(db);
+            db.execSQL(SQL_DELETE_PACKETS_V1);
+        } else {
+            db.execSQL(SQL_DELETE_PACKETS);
+            onCreate(db);
+        }
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        db.execSQL(SQL_DELETE_PACKETS);
+        onCreate(db);
+    }
+
+    /**
+     * Copy the text packets of the version 1 table into the typed columns, in their original order
+     *
+     * @param db database being upgraded
+     */
+    private void migratePacketsV1(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_PACKET);
+        Cursor c = db.query(TABLE_PACKETS_V1, new String[]{DatabaseEntry.PACKET_DATA}, null, null, null, null, "rowid");
+        int migrated = 0;
+        try {
+            while (c.moveToNext()) {
+                try {
+                    PacketStore.bind(insert, TextPacketCodec.parse(c.getString(0)));
+                    insert.executeInsert();
+                    migrated++;
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Dropping malformed packet: " + c.getString(0));
+                }
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+        Log.i(TAG, "Migrated " + migrated + " packets");
     }
 }
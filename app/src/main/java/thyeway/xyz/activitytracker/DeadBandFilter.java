@@ -0,0 +1,89 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Per-sensor filter dropping readings that barely differ from the last one sent
+ * <p/>
+ * A reading passes if it moved out of the dead band around the last value sent for its stream (a
+ * sensor's readings with the same device id), or if nothing was sent for the heartbeat interval,
+ * so the access point can tell a steady sensor from a silent one.
+ */
+public class DeadBandFilter {
+
+    private final float mBand;
+    private final boolean mRelative;
+    private final long mHeartbeat;
+
+    // last value sent and when, by device id, grown when needed
+    private float[] mLastValue = new float[1];
+    private long[] mLastTime = new long[1];
+    private boolean[] mSent = new boolean[1];
+
+    private long mPassed;
+    private long mSuppressed;
+
+    /**
+     * @param band      largest change that is suppressed
+     * @param relative  true if band is a fraction of the last value sent, false if it is absolute
+     * @param heartbeat milliseconds after which a reading passes anyway, 0 for never
+     */
+    public DeadBandFilter(float band, boolean relative, long heartbeat) {
+        if (band < 0 || heartbeat < 0) {
+            throw new IllegalArgumentException("Band and heartbeat must not be negative: " + band + ", " + heartbeat);
+        }
+        mBand = band;
+        mRelative = relative;
+        mHeartbeat = heartbeat;
+    }
+
+    /**
+     * @param device_id stream of the value
+     * @param value     new value
+     * @param now       current time, in milliseconds
+     * @return true if the value is to be sent, false if it is suppressed
+     */
+    public synchronized boolean accept(int device_id, float value, long now) {
+        if (device_id >= mSent.length) {
+            grow(device_id + 1);
+        }
+        if (mSent[device_id] && (mHeartbeat == 0 || now - mLastTime[device_id] < mHeartbeat)) {
+            float last = mLastValue[device_id];
+            float band = mRelative ? mBand * Math.abs(last) : mBand;
+            if (Math.abs(value - last) <= band) {
+                mSuppressed++;
+                return false;
+            }
+        }
+        mSent[device_id] = true;
+        mLastValue[device_id] = value;
+        mLastTime[device_id] = now;
+        mPassed++;
+        return true;
+    }
+
+    /**
+     * @return number of readings sent
+     */
+    public synchronized long passed() {
+        return mPassed;
+    }
+
+    /**
+     * @return number of readings suppressed
+     */
+    public synchronized long suppressed() {
+        return mSuppressed;
+    }
+
+    private void grow(int length) {
+        length = Math.max(length, mSent.length * 2);
+        float[] lastValue = new float[length];
+        long[] lastTime = new long[length];
+        boolean[] sent = new boolean[length];
+        System.arraycopy(mLastValue, 0, lastValue, 0, mLastValue.length);
+        System.arraycopy(mLastTime, 0, lastTime, 0, mLastTime.length);
+        System.arraycopy(mSent, 0, sent, 0, mSent.length);
+        mLastValue = lastValue;
+        mLastTime = lastTime;
+        mSent = sent;
+    }
+}
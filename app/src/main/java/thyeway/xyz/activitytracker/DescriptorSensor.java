@@ -0,0 +1,95 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sensor decoded from its SensorDescriptor
+ * <p/>
+ * A reading is a sequence number and a value, read or notified from their own characteristics,
+ * or several of them at once from the packed characteristic, as records that each hold their own
+ * sequence number or as frames that number their records from a header.
+ */
+public class DescriptorSensor extends Sensor {
+
+    final SensorDescriptor descriptor;
+
+    public DescriptorSensor(SensorDescriptor descriptor, String device_name, String device_mac) {
+        super("[" + descriptor.label + "] " + device_name, device_mac);
+        this.descriptor = descriptor;
+        this.device_id = descriptor.device_id;
+        this.poll_interval = descriptor.poll_interval;
+        this.priority = descriptor.priority;
+        this.service_uuid = descriptor.service_uuid;
+        this.gatt_characteristics = descriptor.characteristics;
+        this.packed_uuid = descriptor.packed_uuid;
+    }
+
+    @Override
+    public void updateData(UUID uuid, byte[] value) {
+        Integer field = descriptor.fields.get(uuid);
+        if (field == null) {
+            return;
+        }
+        switch (field) {
+            case SensorDescriptor.FIELD_SEQUENCE_NUMBER:
+                if (descriptor.sequence.fits(value, 0)) {
+                    this.sequence_number = descriptor.sequence.decodeInt(value, 0);
+                    this.has_sequence_number = true;
+                }
+                break;
+            case SensorDescriptor.FIELD_VALUE:
+                if (descriptor.value.fits(value, 0)) {
+                    this.sensor_value = descriptor.value.decode(value, 0);
+                    this.has_value = true;
+                }
+                break;
+        }
+    }
+
+    @Override
+    public boolean isComplete() {
+        return (this.has_value || descriptor.value_uuid == null)
+                && (this.has_sequence_number || descriptor.sequence_uuid == null);
+    }
+
+    @Override
+    public void emptyData() {
+        this.has_value = false;
+        this.has_sequence_number = false;
+    }
+
+    @Override
+    public Reading createReading(long time) {
+        Reading reading = Reading.obtain(descriptor.tag, descriptor.sensor_type, this.device_id,
+                this.sensor_value, this.sequence_number, time);
+        reading.device_mac = this.device_mac;
+        return reading;
+    }
+
+    @Override
+    public int decodePacked(byte[] value, long time, List<Reading> readings) {
+        int header = descriptor.packed_header_length;
+        int length = descriptor.packed_record_length;
+        FieldLayout[] values = descriptor.packed_values;
+        if (header > 0 && value.length < header + length) {
+            return 0;
+        }
+        int sequence = header > 0 ? descriptor.packed_sequence.decodeInt(value, 0) : 0;
+        int count = 0;
+        for (int base = header; base + length <= value.length; base += length) {
+            if (header == 0) {
+                sequence = descriptor.packed_sequence.decodeInt(value, base);
+            }
+            for (int i = 0; i < values.length; i++) {
+                Reading reading = Reading.obtain(descriptor.tag, descriptor.sensor_type, this.device_id + i,
+                        values[i].decode(value, base), sequence, time);
+                reading.device_mac = this.device_mac;
+                readings.add(reading);
+                count++;
+            }
+            sequence = SequenceTracker.next(sequence);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,103 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Where a number sits in a characteristic value, and how it is turned into a sensor value
+ * <p/>
+ * A field is an integer of 1 to 4 bytes at a fixed offset, or every byte from the offset to the
+ * end of the value, big-endian unless stated otherwise. The decoded value is raw * scale + bias.
+ * Layouts are immutable, the modifiers return a new one.
+ */
+public final class FieldLayout {
+
+    final int offset;
+    final int length;           // bytes, 0 for up to the end of the value
+    final boolean signed;
+    final boolean littleEndian;
+    final float scale;
+    final float bias;
+
+    private FieldLayout(int offset, int length, boolean signed, boolean littleEndian, float scale, float bias) {
+        if (offset < 0 || length < 0 || length > 4) {
+            throw new IllegalArgumentException("Unsupported field: " + length + " bytes at " + offset);
+        }
+        this.offset = offset;
+        this.length = length;
+        this.signed = signed;
+        this.littleEndian = littleEndian;
+        this.scale = scale;
+        this.bias = bias;
+    }
+
+    /**
+     * @param offset offset of the field in the value, or in a packed record
+     * @param length length of the field in bytes (1 to 4), 0 for up to the end of the value
+     * @return an unsigned, big-endian, unscaled field
+     */
+    public static FieldLayout unsigned(int offset, int length) {
+        return new FieldLayout(offset, length, false, false, 1f, 0f);
+    }
+
+    /**
+     * @return the same field, as a two's complement signed integer
+     */
+    public FieldLayout signed() {
+        return new FieldLayout(offset, length, true, littleEndian, scale, bias);
+    }
+
+    /**
+     * @return the same field, least significant byte first
+     */
+    public FieldLayout littleEndian() {
+        return new FieldLayout(offset, length, signed, true, scale, bias);
+    }
+
+    /**
+     * @param scale factor the raw integer is multiplied by
+     * @param bias  added after scaling
+     * @return the same field, scaled
+     */
+    public FieldLayout scaled(float scale, float bias) {
+        return new FieldLayout(offset, length, signed, littleEndian, scale, bias);
+    }
+
+    /**
+     * @param value characteristic value
+     * @param base  offset of the record the field belongs to
+     * @return true if the value holds the whole field
+     */
+    public boolean fits(byte[] value, int base) {
+        return base + offset + Math.max(1, length) <= value.length;
+    }
+
+    /**
+     * @param value characteristic value, fits() must hold
+     * @param base  offset of the record the field belongs to
+     * @return the raw integer
+     */
+    public int decodeInt(byte[] value, int base) {
+        int start = base + offset;
+        int count = length == 0 ? value.length - start : length;
+        int raw = 0;
+        for (int i = 0; i < count; i++) {
+            int b = value[littleEndian ? start + count - 1 - i : start + i] & 0xFF;
+            raw = (raw << 8) | b;
+        }
+        if (signed && count > 0 && count < 4) {
+            int shift = 32 - 8 * count;
+            raw = (raw << shift) >> shift;
+        }
+        return raw;
+    }
+
+    /**
+     * @param value characteristic value, fits() must hold
+     * @param base  offset of the record the field belongs to
+     * @return the scaled value
+     */
+    public float decode(byte[] value, int base) {
+        int raw = decodeInt(value, base);
+        // unsigned 4-byte fields do not fit an int
+        float number = !signed && raw < 0 ? (raw & 0xFFFFFFFFL) : raw;
+        return number * scale + bias;
+    }
+}
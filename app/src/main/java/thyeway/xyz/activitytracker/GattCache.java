@@ -0,0 +1,96 @@
+package thyeway.xyz.activitytracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of the GATT layout of each sensor, keyed by MAC
+ * <p/>
+ * Written after every successful service discovery and kept across app restarts, so a sensor
+ * seen before can be rebuilt without connecting to it, and a reconnect whose services still
+ * match the cached layout can start polling or subscribing without discovering services again.
+ * Lookups are served from memory, writes go to a private preferences file in the background.
+ */
+public final class GattCache {
+
+    // debug use
+    private static final String TAG = "GattCache";
+
+    private static final String PREFERENCES_NAME = "gatt_cache";
+
+    private static GattCache sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final ConcurrentHashMap<Long, GattLayout> mLayouts = new ConcurrentHashMap<>();
+
+    private GattCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            try {
+                mLayouts.put(SensorRegistry.parseMac(entry.getKey()), GattLayout.decode((String) entry.getValue()));
+            } catch (RuntimeException e) {
+                // written by another version, or damaged, rediscovered on the next connection
+                Log.w(TAG, "Dropping cached layout of " + entry.getKey());
+                mPreferences.edit().remove(entry.getKey()).apply();
+            }
+        }
+        Log.i(TAG, "Loaded " + mLayouts.size() + " cached layouts");
+    }
+
+    /**
+     * @param context any context, only its application context is kept
+     * @return the cache shared across the app
+     */
+    public static synchronized GattCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GattCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param mac MAC of the sensor
+     * @return the cached layout of the sensor, or null if it is not known
+     */
+    public GattLayout get(String mac) {
+        return mLayouts.get(SensorRegistry.parseMac(mac));
+    }
+
+    /**
+     * @param mac    MAC of the sensor
+     * @param layout layout found by service discovery
+     */
+    public void put(String mac, GattLayout layout) {
+        mLayouts.put(SensorRegistry.parseMac(mac), layout);
+        mPreferences.edit().putString(mac, layout.encode()).apply();
+    }
+
+    /**
+     * Forget the layout of a sensor, e.g. because its services no longer match it
+     *
+     * @param mac MAC of the sensor
+     */
+    public void remove(String mac) {
+        if (mLayouts.remove(SensorRegistry.parseMac(mac)) != null) {
+            mPreferences.edit().remove(mac).apply();
+        }
+    }
+
+    /**
+     * Rebuild a sensor from its cached layout, without connecting to it
+     *
+     * @param mac MAC of the sensor
+     * @return the sensor, or null if its layout is not cached or its type is not supported
+     */
+    public Sensor createSensor(String mac) {
+        GattLayout layout = get(mac);
+        if (layout == null) {
+            return null;
+        }
+        return SensorDescriptors.createSensor(layout.service_uuid, layout.device_name, mac);
+    }
+}
@@ -0,0 +1,125 @@
+package thyeway.xyz.activitytracker;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GATT layout of a sensor, as found by service discovery
+ * <p/>
+ * Holds the sensor's service, the characteristics the sensor uses with their properties, and the
+ * device name, which is all that is needed to rebuild the sensor through SensorDescriptors and to
+ * check that a connection still exposes the same layout.
+ */
+public class GattLayout {
+
+    // version of the encoded form, bump when it changes
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = "|";
+
+    final UUID service_uuid;
+    final UUID[] characteristics;
+    final int[] properties;
+    final String device_name;
+
+    GattLayout(UUID service_uuid, UUID[] characteristics, int[] properties, String device_name) {
+        this.service_uuid = service_uuid;
+        this.characteristics = characteristics;
+        this.properties = properties;
+        this.device_name = device_name;
+    }
+
+    /**
+     * @param service     discovered service of the sensor
+     * @param wanted      characteristics the sensor uses
+     * @param device_name name of the device, can be null
+     * @return layout of the characteristics of the service that the sensor uses
+     */
+    public static GattLayout of(BluetoothGattService service, Collection<UUID> wanted, String device_name) {
+        List<BluetoothGattCharacteristic> found = new ArrayList<>();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            if (wanted.contains(characteristic.getUuid())) {
+                found.add(characteristic);
+            }
+        }
+        UUID[] characteristics = new UUID[found.size()];
+        int[] properties = new int[found.size()];
+        for (int i = 0; i < characteristics.length; i++) {
+            characteristics[i] = found.get(i).getUuid();
+            properties[i] = found.get(i).getProperties();
+        }
+        return new GattLayout(service.getUuid(), characteristics, properties, device_name);
+    }
+
+    /**
+     * Check that a connection exposes the layout, so it can be used without discovering services
+     *
+     * @param service the sensor's service on the connection, null if the connection does not know it
+     * @return true if the service holds every characteristic of the layout, with the same properties
+     */
+    public boolean matches(BluetoothGattService service) {
+        if (service == null || !service_uuid.equals(service.getUuid())) {
+            return false;
+        }
+        for (int i = 0; i < characteristics.length; i++) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristics[i]);
+            if (characteristic == null || characteristic.getProperties() != properties[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the layout as a single string, see decode()
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(VERSION).append(SEPARATOR).append(service_uuid).append(SEPARATOR);
+        for (int i = 0; i < characteristics.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(characteristics[i]).append('=').append(properties[i]);
+        }
+        // the name goes last, it may hold any character
+        builder.append(SEPARATOR);
+        if (device_name != null) {
+            builder.append(device_name);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param encoded layout as returned by encode()
+     * @return the layout
+     * @throws IllegalArgumentException if the layout is malformed or from another version
+     */
+    public static GattLayout decode(String encoded) {
+        String[] parts = encoded.split("\\|", 4);
+        if (parts.length != 4 || !VERSION.equals(parts[0])) {
+            throw new IllegalArgumentException("Malformed GATT layout: " + encoded);
+        }
+        try {
+            UUID service = UUID.fromString(parts[1]);
+            String[] fields = parts[2].isEmpty() ? new String[0] : parts[2].split(",");
+            UUID[] characteristics = new UUID[fields.length];
+            int[] properties = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                int split = fields[i].indexOf('=');
+                if (split < 0) {
+                    throw new IllegalArgumentException("Malformed GATT layout: " + encoded);
+                }
+                characteristics[i] = UUID.fromString(fields[i].substring(0, split));
+                properties[i] = Integer.parseInt(fields[i].substring(split + 1));
+            }
+            return new GattLayout(service, characteristics, properties, parts[3].isEmpty() ? null : parts[3]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed GATT layout: " + encoded, e);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package thyeway.xyz.activitytracker;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the GATT operations of one connection
+ * <p/>
+ * Android allows a single outstanding GATT operation per connection. Operations are queued and
+ * issued one at a time, the next one once the GATT callback for the current one arrives. An
+ * operation that gets no callback within the timeout, that the stack refuses, or that completes
+ * with an error is retried, and failed once it runs out of retries, so one lost callback can no
+ * longer stall a sensor. The callback of an attempt that timed out may still arrive during the
+ * retry, the first one is ignored rather than taken as the outcome of the retry. The latency of
+ * every completed operation is recorded per type.
+ * <p/>
+ * The GATT callback has to forward its results through the on* methods.
+ */
+public class GattOperationQueue {
+
+    /**
+     * Outcome of an operation, called once, never while the queue is locked
+     */
+    public interface Callback {
+
+        /**
+         * @param operation operation that completed or failed
+         * @param status    GATT status, or STATUS_TIMEOUT / STATUS_CANCELLED
+         */
+        void onComplete(Operation operation, int status);
+    }
+
+    // operation types
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int WRITE_DESCRIPTOR = 2;
+    public static final int REQUEST_MTU = 3;
+    private static final int TYPES = 4;
+
+    // statuses reported on top of the GATT ones
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_CANCELLED = -2;
+
+    // wait before re-issuing an operation the stack refused, e.g. because it is still busy
+    private static final long BUSY_DELAY = 50;
+
+    // debug use
+    private static final String TAG = "GattOperationQueue";
+
+    /**
+     * The calls the queue makes on a connection, BluetoothGatt outside of tests
+     */
+    interface Gatt {
+        boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+        boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+        boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+        boolean requestMtu(int mtu);
+    }
+
+    /**
+     * A queued GATT operation
+     */
+    public static class Operation {
+        final int type;
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+        final byte[] value;
+        final int mtu;
+        final Callback callback;
+
+        int attempts;
+        int generation;         // of the current attempt, timeouts of earlier attempts are ignored
+        boolean issued;         // the current attempt was accepted by the stack
+        boolean late;           // an abandoned attempt may still call back, its callback is skipped
+        boolean lateExpected;   // late was set once, never again so a lost callback cannot eat every retry
+        long started;
+        ScheduledFuture<?> timeout;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor,
+                  byte[] value, int mtu, Callback callback) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.mtu = mtu;
+            this.callback = callback;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return characteristic;
+        }
+
+        public BluetoothGattDescriptor getDescriptor() {
+            return descriptor;
+        }
+    }
+
+    private final Gatt mGatt;
+    private final ScheduledExecutorService mTimer;
+    private final long mTimeout;
+    private final int mMaxRetries;
+
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private Operation mCurrent;
+    private boolean mClosed;
+    private long mStaleCallbacks;
+
+    // statistics, by operation type, latencies in nanoseconds
+    private final long[] mCompleted = new long[TYPES];
+    private final long[] mTotalLatency = new long[TYPES];
+    private final long[] mMaxLatency = new long[TYPES];
+    private long mRetries;
+    private long mTimeouts;
+    private long mFailures;
+
+    /**
+     * Constructor
+     *
+     * @param gatt       connection the operations are issued on
+     * @param timer      timer for the operation timeouts, can be shared between queues
+     * @param timeout    how long to wait for the callback of an operation, in milliseconds
+     * @param maxRetries how many times an operation is re-issued before it is failed
+     */
+    public GattOperationQueue(final BluetoothGatt gatt, ScheduledExecutorService timer, long timeout, int maxRetries) {
+        this(new Gatt() {
+            @Override
+            public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+                return gatt.readCharacteristic(characteristic);
+            }
+
+            @Override
+            public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+                return gatt.writeCharacteristic(characteristic);
+            }
+
+            @Override
+            public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+                return gatt.writeDescriptor(descriptor);
+            }
+
+            @Override
+            public boolean requestMtu(int mtu) {
+                return gatt.requestMtu(mtu);
+            }
+        }, timer, timeout, maxRetries);
+    }
+
+    GattOperationQueue(Gatt gatt, ScheduledExecutorService timer, long timeout, int maxRetries) {
+        mGatt = gatt;
+        mTimer = timer;
+        mTimeout = Math.max(1, timeout);
+        mMaxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param characteristic characteristic to read, the value is in the characteristic on success
+     * @param callback       outcome of the read
+     */
+    public void read(BluetoothGattCharacteristic characteristic, Callback callback) {
+        enqueue(new Operation(READ, characteristic, null, null, 0, callback));
+    }
+
+    /**
+     * @param characteristic characteristic to write
+     * @param value          value to write
+     * @param callback       outcome of the write
+     */
+    public void write(BluetoothGattCharacteristic characteristic, byte[] value, Callback callback) {
+        enqueue(new Operation(WRITE, characteristic, null, value, 0, callback));
+    }
+
+    /**
+     * @param descriptor descriptor to write, e.g. a CCCD
+     * @param value      value to write
+     * @param callback   outcome of the write
+     */
+    public void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+        enqueue(new Operation(WRITE_DESCRIPTOR, null, descriptor, value, 0, callback));
+    }
+
+    /**
+     * @param mtu      MTU to ask for
+     * @param callback outcome of the request
+     */
+    public void requestMtu(int mtu, Callback callback) {
+        enqueue(new Operation(REQUEST_MTU, null, null, null, mtu, callback));
+    }
+
+    private void enqueue(Operation operation) {
+        synchronized (this) {
+            if (!mClosed) {
+                mPending.addLast(operation);
+                startNext();
+                return;
+            }
+        }
+        operation.callback.onComplete(operation, STATUS_CANCELLED);
+    }
+
+    private synchronized void startNext() {
+        if (mCurrent != null || mClosed || mPending.isEmpty()) {
+            return;
+        }
+        mCurrent = mPending.pollFirst();
+        mCurrent.started = System.nanoTime();
+        attempt(mCurrent);
+    }
+
+    private void attempt(final Operation operation) {
+        operation.attempts++;
+        final int generation = ++operation.generation;
+        boolean issued = issue(operation);
+        operation.issued = issued;
+        if (!issued) {
+            Log.i(TAG, "Operation " + operation.type + " refused, attempt " + operation.attempts);
+        }
+        // a refused operation is treated like one that timed out, after a short wait
+        operation.timeout = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut(operation, generation);
+            }
+        }, issued ? mTimeout : BUSY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean issue(Operation operation) {
+        switch (operation.type) {
+            case READ:
+                return mGatt.readCharacteristic(operation.characteristic);
+            case WRITE:
+                operation.characteristic.setValue(operation.value);
+                return mGatt.writeCharacteristic(operation.characteristic);
+            case WRITE_DESCRIPTOR:
+                operation.descriptor.setValue(operation.value);
+                return mGatt.writeDescriptor(operation.descriptor);
+            case REQUEST_MTU:
+                return mGatt.requestMtu(operation.mtu);
+            default:
+                return false;
+        }
+    }
+
+    private void timedOut(Operation operation, int generation) {
+        synchronized (this) {
+            if (mCurrent != operation || operation.generation != generation) {
+                // the attempt already completed, or was retried
+                return;
+            }
+            if (operation.issued) {
+                // the stack took this attempt, so it was done with any earlier one, a callback still
+                // expected from that is lost
+                operation.late = false;
+            }
+            if (operation.attempts <= mMaxRetries) {
+                if (operation.issued && !operation.lateExpected) {
+                    // its callback may still arrive, and must not be taken for the retry's, there is
+                    // at most one as Android only accepts the retry once the stack is done with it
+                    operation.late = true;
+                    operation.lateExpected = true;
+                }
+                mRetries++;
+                attempt(operation);
+                return;
+            }
+            mTimeouts++;
+            mCurrent = null;
+        }
+        Log.i(TAG, "Operation " + operation.type + " timed out after " + operation.attempts + " attempts");
+        operation.callback.onComplete(operation, STATUS_TIMEOUT);
+        startNext();
+    }
+
+    /**
+     * Complete the current operation if it matches the GATT callback
+     */
+    private void completed(int type, Object target, int status) {
+        Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null || operation.type != type
+                    || (target != null && target != operation.characteristic && target != operation.descriptor)) {
+                // late callback of an operation that already timed out
+                return;
+            }
+            if (operation.late) {
+                // late callback of an abandoned attempt of this operation
+                operation.late = false;
+                mStaleCallbacks++;
+                return;
+            }
+            operation.timeout.cancel(false);
+            if (status != BluetoothGatt.GATT_SUCCESS && operation.attempts <= mMaxRetries) {
+                mRetries++;
+                attempt(operation);
+                return;
+            }
+
+            long latency = System.nanoTime() - operation.started;
+            mCompleted[type]++;
+            mTotalLatency[type] += latency;
+            mMaxLatency[type] = Math.max(mMaxLatency[type], latency);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                mFailures++;
+            }
+            mCurrent = null;
+        }
+        operation.callback.onComplete(operation, status);
+        startNext();
+    }
+
+    /**
+     * To be called from BluetoothGattCallback.onCharacteristicRead
+     */
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        completed(READ, characteristic, status);
+    }
+
+    /**
+     * To be called from BluetoothGattCallback.onCharacteristicWrite
+     */
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        completed(WRITE, characteristic, status);
+    }
+
+    /**
+     * To be called from BluetoothGattCallback.onDescriptorWrite
+     */
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        completed(WRITE_DESCRIPTOR, descriptor, status);
+    }
+
+    /**
+     * To be called from BluetoothGattCallback.onMtuChanged
+     */
+    public void onMtuChanged(int status) {
+        completed(REQUEST_MTU, null, status);
+    }
+
+    /**
+     * Cancel the current and every pending operation, e.g. because the device disconnected
+     * The queue cannot be used afterwards.
+     */
+    public void close() {
+        ArrayList<Operation> cancelled = new ArrayList<>();
+        synchronized (this) {
+            mClosed = true;
+            if (mCurrent != null) {
+                mCurrent.timeout.cancel(false);
+                cancelled.add(mCurrent);
+                mCurrent = null;
+            }
+            cancelled.addAll(mPending);
+            mPending.clear();
+        }
+        for (Operation operation : cancelled) {
+            operation.callback.onComplete(operation, STATUS_CANCELLED);
+        }
+    }
+
+    /**
+     * @return number of operations waiting, including the one in progress
+     */
+    public synchronized int size() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    /**
+     * @param type operation type
+     * @return average latency of the completed operations of that type, in milliseconds
+     */
+    public synchronized double getAverageLatency(int type) {
+        return mCompleted[type] == 0 ? 0 : mTotalLatency[type] / (mCompleted[type] * 1e6);
+    }
+
+    /**
+     * @param type operation type
+     * @return highest latency of the completed operations of that type, in milliseconds
+     */
+    public synchronized double getMaxLatency(int type) {
+        return mMaxLatency[type] / 1e6;
+    }
+
+    /**
+     * @return number of operations re-issued
+     */
+    public synchronized long getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * @return number of operations failed for lack of a callback
+     */
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return number of late callbacks of abandoned attempts that were ignored
+     */
+    public synchronized long getStaleCallbacks() {
+        return mStaleCallbacks;
+    }
+
+    /**
+     * @return number of operations failed with a GATT error
+     */
+    public synchronized long getFailures() {
+        return mFailures;
+    }
+}
@@ -0,0 +1,108 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.List;
+
+/**
+ * 3-axis accelerometer streaming 50 to 100 samples per second in packed frames
+ * <p/>
+ * A frame is the sequence number of its first sample (1 byte), then per sample x, y and z as
+ * signed 16-bit little-endian counts of 1/4096 g. Sequence numbers go up by one per sample and
+ * wrap from 255 to 1, 0 is reserved as for LuxSensor. Frames are decoded into a SampleRing and
+ * forwarded in bulk once it holds BULK_SAMPLES samples, one reading per axis with the axis as
+ * the device id.
+ */
+public class ImuSensor extends DescriptorSensor {
+
+    public static final int AXIS_X = 0;
+    public static final int AXIS_Y = 1;
+    public static final int AXIS_Z = 2;
+
+    // counts per g at the sensor's +-8 g range
+    private static final float SCALE = 1f / 4096;
+
+    private static final int HEADER_LENGTH = 1;
+    private static final int SAMPLE_LENGTH = 2 * SampleRing.AXES;
+
+    // samples decoded before they are forwarded, 0.25 to 0.5 s at the sensor's rates
+    static final int BULK_SAMPLES = 25;
+    private static final int RING_CAPACITY = 256;
+
+    // a frame holds up to 40 samples, 0.4 s at 100 Hz, poll faster than that if notifications are unavailable
+    static final long POLL_INTERVAL = 250;
+
+    // a stream this fast loses samples while waiting for its turn, keep it connected
+    static final int PRIORITY = 1;
+
+    public static final SensorDescriptor DESCRIPTOR =
+            new SensorDescriptor.Builder(SensorType.IMU, SensorType.TAG_IMU, UUIDs.IMU_SERVICE)
+                    .packedFrames(UUIDs.IMU_SAMPLES, HEADER_LENGTH, FieldLayout.unsigned(0, 1), SAMPLE_LENGTH,
+                            axis(0), axis(2), axis(4))
+                    .pollInterval(POLL_INTERVAL)
+                    .priority(PRIORITY)
+                    .factory(new SensorDescriptor.Factory() {
+                        @Override
+                        public Sensor create(SensorDescriptor descriptor, String device_name, String device_mac) {
+                            return new ImuSensor(device_name, device_mac);
+                        }
+                    })
+                    .build();
+
+    private final SampleRing mRing = new SampleRing(RING_CAPACITY);
+
+    public ImuSensor(String device_name, String device_mac) {
+        super(DESCRIPTOR, device_name, device_mac);
+    }
+
+    @Override
+    public boolean isComplete() {
+        // every sample arrives through the packed characteristic
+        return false;
+    }
+
+    // notifications and the disconnect flush may arrive on different binder threads, both lock the ring
+    @Override
+    public synchronized int decodePacked(byte[] value, long time, List<Reading> readings) {
+        if (value.length < HEADER_LENGTH + SAMPLE_LENGTH) {
+            return 0;
+        }
+        FieldLayout[] axes = descriptor.packed_values;
+        int sequence = descriptor.packed_sequence.decodeInt(value, 0);
+        for (int i = HEADER_LENGTH; i + SAMPLE_LENGTH <= value.length; i += SAMPLE_LENGTH) {
+            mRing.put(sequence, time, axes[AXIS_X].decode(value, i), axes[AXIS_Y].decode(value, i), axes[AXIS_Z].decode(value, i));
+            sequence = SequenceTracker.next(sequence);
+        }
+        return mRing.size() >= BULK_SAMPLES ? flushPacked(readings) : 0;
+    }
+
+    @Override
+    public synchronized int flushPacked(List<Reading> readings) {
+        int samples = mRing.size();
+        for (int i = 0; i < samples; i++) {
+            int sequence = mRing.sequenceAt(i);
+            long time = mRing.timeAt(i);
+            for (int axis = 0; axis < SampleRing.AXES; axis++) {
+                Reading reading = Reading.obtain(descriptor.tag, descriptor.sensor_type, this.device_id + axis,
+                        mRing.valueAt(i, axis), sequence, time);
+                reading.device_mac = this.device_mac;
+                readings.add(reading);
+            }
+        }
+        mRing.remove(samples);
+        return samples * SampleRing.AXES;
+    }
+
+    /**
+     * @return number of samples lost because they were not forwarded in time
+     */
+    public synchronized long getOverwritten() {
+        return mRing.overwritten();
+    }
+
+    /**
+     * @param offset offset of the axis in a sample
+     * @return a signed 16-bit little-endian count of 1/4096 g
+     */
+    private static FieldLayout axis(int offset) {
+        return FieldLayout.unsigned(offset, 2).signed().littleEndian().scaled(SCALE, 0);
+    }
+}
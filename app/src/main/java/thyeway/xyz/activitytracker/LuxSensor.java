@@ -1,97 +1,31 @@
 package thyeway.xyz.activitytracker;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.util.Log;
-
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.UUID;
 
-public class LuxSensor extends Sensor {
-
-    public static final String DEVICE_ID = "0x00";
-    public static final String SERVICE_UUID = UUIDs.LUX_SERVICE;
-    private static final String TAG = "LuxSensor";
+/**
+ * Light sensor: an 8-bit sequence number and an unsigned big-endian value, each in its own
+ * characteristic, or packed 3 bytes per sample (sequence number, then a 16-bit value)
+ */
+public class LuxSensor extends DescriptorSensor {
+
+    public static final int DEVICE_ID = 0x00;
+    public static final UUID SERVICE_UUID = UUIDs.LUX_SERVICE;
+
+    public static final SensorDescriptor DESCRIPTOR =
+            new SensorDescriptor.Builder(SensorType.LUX, SensorType.TAG_LUX, SERVICE_UUID)
+                    .deviceId(DEVICE_ID)
+                    .sequence(UUIDs.LUX_SEQUENCE_NUMBER, FieldLayout.unsigned(0, 1))
+                    .value(UUIDs.LUX_VALUE, FieldLayout.unsigned(0, 0))
+                    .packed(UUIDs.LUX_PACKED, 3, FieldLayout.unsigned(0, 1), FieldLayout.unsigned(1, 2))
+                    .factory(new SensorDescriptor.Factory() {
+                        @Override
+                        public Sensor create(SensorDescriptor descriptor, String device_name, String device_mac) {
+                            return new LuxSensor(device_name, device_mac);
+                        }
+                    })
+                    .build();
 
     public LuxSensor(String device_name, String device_mac) {
-        super("[LUX] " + device_name, device_mac);
-        this.device_id = DEVICE_ID;
-        this.service_uuid = SERVICE_UUID;
-
-        this.gatt_characteristics = new ArrayList<>();
-        this.gatt_characteristics.add(UUIDs.LUX_SEQUENCE_NUMBER);
-        this.gatt_characteristics.add(UUIDs.LUX_VALUE);
-    }
-
-    @Override
-    public void addToQueue(BluetoothGattCharacteristic characteristic) {
-        if(this.characteristicsQueue == null) {
-            this.characteristicsQueue = new LinkedList<>();
-        }
-        this.characteristicsQueue.add(characteristic);
-    }
-
-    @Override
-    public void prepareReadQueue() {
-        this.characteristicsReadQueue = new LinkedList<>(this.characteristicsQueue);
-    }
-
-    @Override
-    public BluetoothGattCharacteristic getQueueNext() {
-        if(this.characteristicsReadQueue.peek() != null) {
-            return this.characteristicsReadQueue.poll();
-        }
-        return null;
-    }
-
-    @Override
-    public void updateData(String UUID, byte[] value) {
-        switch(UUID.toLowerCase()) {
-            case UUIDs.LUX_SEQUENCE_NUMBER:
-                this.sequence_number = Integer.toString(value[0]);
-                break;
-            case UUIDs.LUX_VALUE:
-                int data = new BigInteger(1, value).intValue();
-                this.sensor_value = Float.toString((float) data);
-                break;
-        }
-    }
-
-    @Override
-    public boolean readReady() {
-        if(this.sensor_value == null && this.sequence_number == null) {
-            return true;
-        }
-        return false;
-    }
-
-    @Override
-    public void emptyData() {
-        this.sensor_value = null;
-        this.sequence_number = null;
-    }
-
-    /**
-     * Packet Structure: LUX, ID, Val, Seq, Timestamp
-     * @return
-     */
-    @Override
-    public String createPacket(String time) {
-
-        StringBuilder builder = new StringBuilder();
-        builder.append("lux ");
-        builder.append(this.device_id);
-        builder.append(" ");
-        builder.append(this.sensor_value);
-        builder.append(" ");
-        builder.append(this.sequence_number);
-        builder.append(" ");
-        builder.append(time);
-        builder.append("\n");
-
-        return builder.toString();
+        super(DESCRIPTOR, device_name, device_mac);
     }
 }
@@ -0,0 +1,28 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Wire format of the readings sent to an access point (Pi)
+ */
+public interface PacketCodec {
+
+    /**
+     * @return bytes to send once at the start of every connection, may be empty
+     */
+    byte[] preamble();
+
+    /**
+     * @return the most bytes a single encoded reading can take
+     */
+    int maxRecordLength();
+
+    /**
+     * Encode a reading into a buffer
+     *
+     * @param reading reading to be encoded
+     * @param buffer  buffer to encode into, must have at least maxRecordLength() bytes left
+     * @param offset  position in the buffer to start writing at
+     * @return number of bytes written, 0 if the reading cannot be encoded and is dropped
+     */
+    int encode(Reading reading, byte[] buffer, int offset);
+
+}
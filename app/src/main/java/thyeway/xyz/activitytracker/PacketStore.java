@@ -0,0 +1,154 @@
+package thyeway.xyz.activitytracker;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Collections;
+import java.util.List;
+
+import static thyeway.xyz.activitytracker.DatabaseContract.DatabaseEntry;
+
+/**
+ * Local store for readings that could not be relayed to an access point (Pi)
+ * <p/>
+ * Holds a single database handle for the lifetime of the service, and inserts through one
+ * prepared statement, a whole batch of readings per transaction.
+ */
+public class PacketStore {
+
+    // oldest rows first, in the column order used by readReading
+    private static final String[] PAGE_COLUMNS = {
+            DatabaseEntry._ID,
+            DatabaseEntry.SENSOR_TYPE,
+            DatabaseEntry.DEVICE_ID,
+            DatabaseEntry.VALUE,
+            DatabaseEntry.SEQUENCE_NUMBER,
+            DatabaseEntry.TIMESTAMP,
+            DatabaseEntry.SENSOR_MAC
+    };
+    private static final String PAGE_AFTER = DatabaseEntry._ID + " > ?";
+    private static final String DELETE_RANGE = DatabaseEntry._ID + " BETWEEN ? AND ?";
+
+    private final DatabaseHelper mDbHelper;
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mInsert;
+
+    /**
+     * Constructor, opens (and if needed creates or upgrades) the database
+     *
+     * @param context context to use to open or create the database
+     */
+    public PacketStore(Context context) {
+        mDbHelper = new DatabaseHelper(context);
+        mDb = mDbHelper.getWritableDatabase();
+        mInsert = mDb.compileStatement(DatabaseHelper.SQL_INSERT_PACKET);
+    }
+
+    /**
+     * Bind a reading to the parameters of DatabaseHelper.SQL_INSERT_PACKET
+     *
+     * @param statement compiled insert statement
+     * @param reading   reading to be inserted
+     */
+    static void bind(SQLiteStatement statement, Reading reading) {
+        statement.clearBindings();
+        if (reading.device_mac != null) {
+            statement.bindString(1, reading.device_mac);
+        }
+        statement.bindLong(2, reading.sensor_type);
+        statement.bindLong(3, reading.device_id);
+        statement.bindLong(4, reading.sequence_number);
+        statement.bindLong(5, reading.timestamp);
+        statement.bindDouble(6, reading.value);
+    }
+
+    /**
+     * @param reading reading to be stored
+     */
+    public void insert(Reading reading) {
+        insert(Collections.singletonList(reading));
+    }
+
+    /**
+     * Store a batch of readings in a single transaction
+     *
+     * @param readings readings to be stored, in order
+     */
+    public synchronized void insert(List<Reading> readings) {
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (Reading reading : readings) {
+                bind(mInsert, reading);
+                mInsert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * @param afterId only rows with a larger row id are returned, 0 for the oldest rows
+     * @param limit   maximum number of rows
+     * @return cursor over the oldest stored rows after the given one, to be read with readId and readReading
+     */
+    public Cursor queryPage(long afterId, int limit) {
+        return mDb.query(DatabaseEntry.TABLE_PACKETS, PAGE_COLUMNS, PAGE_AFTER, new String[]{Long.toString(afterId)},
+                null, null, DatabaseEntry._ID, Integer.toString(limit));
+    }
+
+    /**
+     * @param c cursor returned by queryPage
+     * @return row id of the current row
+     */
+    public static long readId(Cursor c) {
+        return c.getLong(0);
+    }
+
+    /**
+     * @param c cursor returned by queryPage
+     * @return reading held in the current row, can be recycled once used
+     */
+    public static Reading readReading(Cursor c) {
+        int type = c.getInt(1);
+        Reading reading = Reading.obtain(SensorType.tagOf(type), type, c.getInt(2), c.getFloat(3), c.getInt(4), c.getLong(5));
+        reading.device_mac = c.isNull(6) ? null : c.getString(6);
+        return reading;
+    }
+
+    /**
+     * Delete a range of rows in a single transaction
+     *
+     * @param first first row id, inclusive
+     * @param last  last row id, inclusive
+     * @return number of rows deleted
+     */
+    public int deleteRange(long first, long last) {
+        mDb.beginTransactionNonExclusive();
+        try {
+            int deleted = mDb.delete(DatabaseEntry.TABLE_PACKETS, DELETE_RANGE, new String[]{Long.toString(first), Long.toString(last)});
+            mDb.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * @return number of stored rows
+     */
+    public long count() {
+        return DatabaseUtils.queryNumEntries(mDb, DatabaseEntry.TABLE_PACKETS);
+    }
+
+    /**
+     * Release the database handle, the store cannot be used afterwards
+     */
+    public synchronized void close() {
+        mInsert.close();
+        mDbHelper.close();
+    }
+}
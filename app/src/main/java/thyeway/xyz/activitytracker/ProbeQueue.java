@@ -0,0 +1,239 @@
+package thyeway.xyz.activitytracker;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes devices that do not advertise their services, a few at a time
+ * <p/>
+ * Probing a device means connecting to it and discovering its services, which is slow and takes
+ * a connection slot, so only a small number of probes run at once and the rest wait their turn.
+ * A probe that does not finish within the timeout is cancelled. Devices whose services were
+ * discovered and turned out not to be sensors are remembered for a while and not probed again,
+ * however often they are scanned. A probe that failed, timed out or was disconnected says nothing
+ * about the device, which may be probed again the next time it is scanned.
+ */
+public class ProbeQueue {
+
+    /**
+     * Connects to devices to find out whether they are sensors
+     */
+    public interface Prober {
+
+        /**
+         * Start probing a device, finished() has to be called once it is known whether it is a
+         * sensor, failed() if that could not be found out
+         *
+         * @param mac MAC of the device
+         */
+        void probe(String mac);
+
+        /**
+         * Give up on a probe that took too long, e.g. disconnect from the device
+         *
+         * @param mac MAC of the device
+         */
+        void cancel(String mac);
+    }
+
+    // debug use
+    private static final String TAG = "ProbeQueue";
+
+    private final Prober mProber;
+    private final ScheduledExecutorService mTimer;
+    private final int mMaxProbes;
+    private final long mTimeout;
+    private final long mNegativeTtl;
+
+    private final ArrayDeque<String> mPending = new ArrayDeque<>();
+    private final HashMap<String, ScheduledFuture<?>> mProbing = new HashMap<>();
+    private final HashSet<String> mQueued = new HashSet<>();
+
+    // devices found not to be sensors, by MAC, with the time they may be probed again
+    private final HashMap<Long, Long> mNegative = new HashMap<>();
+
+    private long mProbes;
+    private long mSkipped;
+
+    /**
+     * Constructor
+     *
+     * @param prober      connects to the devices
+     * @param timer       timer for the probe timeouts
+     * @param maxProbes   maximum number of probes running at once
+     * @param timeout     how long a probe may take, in milliseconds
+     * @param negativeTtl how long a device that is not a sensor is not probed again, in milliseconds
+     */
+    public ProbeQueue(Prober prober, ScheduledExecutorService timer, int maxProbes, long timeout, long negativeTtl) {
+        mProber = prober;
+        mTimer = timer;
+        mMaxProbes = Math.max(1, maxProbes);
+        mTimeout = Math.max(1, timeout);
+        mNegativeTtl = negativeTtl;
+    }
+
+    /**
+     * Queue a device to be probed, unless it already is or is known not to be a sensor
+     *
+     * @param mac MAC of the device
+     * @return true if the device was queued
+     */
+    public boolean offer(String mac) {
+        synchronized (this) {
+            if (mQueued.contains(mac)) {
+                return false;
+            }
+            Long retry = mNegative.get(SensorRegistry.parseMac(mac));
+            if (retry != null) {
+                if (System.currentTimeMillis() < retry) {
+                    mSkipped++;
+                    return false;
+                }
+                mNegative.remove(SensorRegistry.parseMac(mac));
+            }
+            mQueued.add(mac);
+            mPending.addLast(mac);
+        }
+        startNext();
+        return true;
+    }
+
+    /**
+     * Report the outcome of a probe whose services were discovered, frees its slot for the next device
+     *
+     * @param mac    MAC of the device
+     * @param sensor true if the device is a sensor
+     */
+    public void finished(String mac, boolean sensor) {
+        release(mac, !sensor);
+    }
+
+    /**
+     * Report a probe that could not tell whether the device is a sensor, e.g. because it
+     * disconnected or discovery failed, frees its slot without remembering the device
+     *
+     * @param mac MAC of the device
+     */
+    public void failed(String mac) {
+        release(mac, false);
+    }
+
+    private void release(String mac, boolean notASensor) {
+        synchronized (this) {
+            ScheduledFuture<?> timeout = mProbing.remove(mac);
+            if (timeout == null) {
+                // timed out already
+                return;
+            }
+            timeout.cancel(false);
+            mQueued.remove(mac);
+            if (notASensor) {
+                remember(mac);
+            }
+        }
+        startNext();
+    }
+
+    private void remember(String mac) {
+        long now = System.currentTimeMillis();
+        // drop the expired entries once in a while, the map would otherwise grow with every device seen
+        if (mNegative.size() >= 1024) {
+            Iterator<Map.Entry<Long, Long>> entries = mNegative.entrySet().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().getValue() <= now) {
+                    entries.remove();
+                }
+            }
+        }
+        mNegative.put(SensorRegistry.parseMac(mac), now + mNegativeTtl);
+    }
+
+    private void startNext() {
+        while (true) {
+            final String mac;
+            synchronized (this) {
+                if (mProbing.size() >= mMaxProbes || mPending.isEmpty()) {
+                    return;
+                }
+                mac = mPending.pollFirst();
+                mProbing.put(mac, mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timedOut(mac);
+                    }
+                }, mTimeout, TimeUnit.MILLISECONDS));
+                mProbes++;
+            }
+            Log.i(TAG, "Probing " + mac);
+            mProber.probe(mac);
+        }
+    }
+
+    private void timedOut(String mac) {
+        synchronized (this) {
+            if (mProbing.remove(mac) == null) {
+                return;
+            }
+            // out of range or not answering, not remembered as it may still be a sensor
+            mQueued.remove(mac);
+        }
+        Log.i(TAG, "Probe timed out: " + mac);
+        mProber.cancel(mac);
+        startNext();
+    }
+
+    /**
+     * @return number of probes running
+     */
+    public synchronized int probing() {
+        return mProbing.size();
+    }
+
+    /**
+     * @return number of devices waiting to be probed
+     */
+    public synchronized int pending() {
+        return mPending.size();
+    }
+
+    /**
+     * @return number of probes started
+     */
+    public synchronized long probes() {
+        return mProbes;
+    }
+
+    /**
+     * @return number of devices not probed because they are known not to be sensors
+     */
+    public synchronized long skipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Cancel the running probes and forget the waiting ones
+     */
+    public void shutdown() {
+        HashSet<String> running;
+        synchronized (this) {
+            running = new HashSet<>(mProbing.keySet());
+            for (ScheduledFuture<?> timeout : mProbing.values()) {
+                timeout.cancel(false);
+            }
+            mProbing.clear();
+            mPending.clear();
+            mQueued.clear();
+        }
+        for (String mac : running) {
+            mProber.cancel(mac);
+        }
+    }
+}
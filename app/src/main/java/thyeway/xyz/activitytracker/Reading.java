@@ -0,0 +1,90 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * A single sensor reading, as relayed to an access point (Pi)
+ * <p/>
+ * Readings on the live path come from a pool: take one with obtain(), and hand it back with
+ * recycle() once it has been sent or stored. Readings that are not recycled are simply
+ * garbage collected.
+ */
+public class Reading {
+
+    // recycled readings, linked through next
+    private static final int MAX_POOL_SIZE = 512;
+    private static final Object sPoolLock = new Object();
+    private static Reading sPool;
+    private static int sPoolSize;
+
+    private Reading next;
+    private boolean inPool;
+
+    String tag;             // packet tag used by the text format, e.g. "lux"
+    int sensor_type;        // sensor type used by the binary format
+    int device_id;
+    float value;
+    int sequence_number;
+    long timestamp;         // seconds since epoch
+    String device_mac;      // sensor the reading came from, not part of the wire formats
+
+    public Reading(String tag, int sensor_type, int device_id, float value, int sequence_number, long timestamp) {
+        set(tag, sensor_type, device_id, value, sequence_number, timestamp);
+    }
+
+    private void set(String tag, int sensor_type, int device_id, float value, int sequence_number, long timestamp) {
+        this.tag = tag;
+        this.sensor_type = sensor_type;
+        this.device_id = device_id;
+        this.value = value;
+        this.sequence_number = sequence_number;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return a reading from the pool, or a new one if the pool is empty
+     */
+    public static Reading obtain(String tag, int sensor_type, int device_id, float value, int sequence_number, long timestamp) {
+        Reading reading = null;
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                reading = sPool;
+                sPool = reading.next;
+                reading.next = null;
+                reading.inPool = false;
+                sPoolSize--;
+            }
+        }
+        if (reading == null) {
+            return new Reading(tag, sensor_type, device_id, value, sequence_number, timestamp);
+        }
+        reading.set(tag, sensor_type, device_id, value, sequence_number, timestamp);
+        return reading;
+    }
+
+    /**
+     * Hand the reading back to the pool, it must not be used afterwards
+     *
+     * @throws IllegalStateException if the reading was already recycled
+     */
+    public void recycle() {
+        synchronized (sPoolLock) {
+            if (inPool) {
+                throw new IllegalStateException("Reading already recycled");
+            }
+            device_mac = null;
+            if (sPoolSize < MAX_POOL_SIZE) {
+                inPool = true;
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * @return the reading in the text packet format
+     */
+    @Override
+    public String toString() {
+        return TextPacketCodec.format(this);
+    }
+}
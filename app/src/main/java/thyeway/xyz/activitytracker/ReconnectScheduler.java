@@ -0,0 +1,189 @@
+package thyeway.xyz.activitytracker;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules attempts to restore the connection to an access point (Pi)
+ * <p/>
+ * The delay between attempts starts at the base delay and doubles after every failed attempt,
+ * up to the ceiling. Each delay is shortened by a random amount (jitter) so that several phones
+ * do not retry in lock step. A pending attempt can be brought forward with wake(), e.g. when
+ * the phone joins a network.
+ */
+public class ReconnectScheduler {
+
+    /**
+     * Callback for the reconnect attempts, called on the scheduler thread
+     */
+    public interface Listener {
+
+        /**
+         * Try to restore the connection
+         * @return true if the connection is back up
+         */
+        boolean onAttempt();
+
+        /**
+         * The connection has been restored, attempts stop until the next start()
+         */
+        void onRestored();
+    }
+
+    // debug use
+    private static final String TAG = "ReconnectScheduler";
+
+    private final Listener mListener;
+    private final Random mRandom = new Random();
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // backoff policy, delays in milliseconds
+    private long mBaseDelay;
+    private long mMaxDelay;
+    private float mJitter;
+
+    // state
+    private boolean mRunning;
+    private int mAttempts;
+    private long mNextAttemptTime;
+    private ScheduledFuture<?> mNextAttempt;
+
+    private final Runnable attempt = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectScheduler.this) {
+                if (!mRunning) {
+                    return;
+                }
+                mNextAttempt = null;
+                mAttempts++;
+            }
+
+            Log.i(TAG, "Attempt " + mAttempts);
+            boolean restored = mListener.onAttempt();
+
+            synchronized (ReconnectScheduler.this) {
+                if (!restored) {
+                    scheduleNext();
+                    return;
+                }
+                mRunning = false;
+                mNextAttemptTime = 0;
+            }
+            mListener.onRestored();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param listener  callback for the reconnect attempts
+     * @param baseDelay delay before the first attempt, in milliseconds
+     * @param maxDelay  ceiling for the delay between attempts, in milliseconds
+     * @param jitter    fraction (0 to 1) by which each delay is randomly shortened
+     */
+    public ReconnectScheduler(Listener listener, long baseDelay, long maxDelay, float jitter) {
+        mListener = listener;
+        configure(baseDelay, maxDelay, jitter);
+    }
+
+    /**
+     * Update the backoff policy, takes effect from the next scheduled attempt
+     *
+     * @param baseDelay delay before the first attempt, in milliseconds
+     * @param maxDelay  ceiling for the delay between attempts, in milliseconds
+     * @param jitter    fraction (0 to 1) by which each delay is randomly shortened
+     */
+    public synchronized void configure(long baseDelay, long maxDelay, float jitter) {
+        mBaseDelay = Math.max(1, baseDelay);
+        mMaxDelay = Math.max(mBaseDelay, maxDelay);
+        mJitter = Math.max(0f, Math.min(1f, jitter));
+    }
+
+    /**
+     * Start attempting to reconnect, does nothing if already started
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mAttempts = 0;
+        scheduleNext();
+    }
+
+    /**
+     * Bring the pending attempt forward, e.g. because the network changed
+     */
+    public synchronized void wake() {
+        if (!mRunning || mNextAttempt == null) {
+            return;
+        }
+        if (mNextAttempt.cancel(false)) {
+            Log.i(TAG, "Woken up, attempting now");
+            mNextAttemptTime = System.currentTimeMillis();
+            mNextAttempt = mExecutor.schedule(attempt, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Backoff delay, also used for the sensor connections by ConnectionManager
+     *
+     * @param attempts  failed attempts so far
+     * @param baseDelay delay before the first attempt, in milliseconds
+     * @param maxDelay  ceiling for the delay, in milliseconds
+     * @param jitter    fraction (0 to 1) by which the delay is randomly shortened
+     * @param random    source of the jitter
+     * @return baseDelay * 2^attempts, at most maxDelay, less the jitter, in milliseconds
+     */
+    static long backoffDelay(int attempts, long baseDelay, long maxDelay, float jitter, Random random) {
+        // without overflowing for long outages
+        long delay = baseDelay << Math.min(attempts, 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        return delay - (long) (delay * jitter * random.nextFloat());
+    }
+
+    private void scheduleNext() {
+        long delay = backoffDelay(mAttempts, mBaseDelay, mMaxDelay, mJitter, mRandom);
+
+        Log.i(TAG, "Next attempt in " + delay + "ms");
+        mNextAttemptTime = System.currentTimeMillis() + delay;
+        mNextAttempt = mExecutor.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true while attempts are being made
+     */
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return number of attempts made since the connection went down
+     */
+    public synchronized int getAttemptCount() {
+        return mAttempts;
+    }
+
+    /**
+     * @return time of the next attempt, in milliseconds since epoch, 0 if none is scheduled
+     */
+    public synchronized long getNextAttemptTime() {
+        return mRunning ? mNextAttemptTime : 0;
+    }
+
+    /**
+     * Stop attempting, the scheduler cannot be used afterwards
+     */
+    public synchronized void shutdown() {
+        mRunning = false;
+        mExecutor.shutdownNow();
+    }
+}
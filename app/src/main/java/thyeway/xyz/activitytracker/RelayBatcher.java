@@ -0,0 +1,190 @@
+package thyeway.xyz.activitytracker;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching stage in front of the relay connection
+ * <p/>
+ * Readings from all tracked sensors are encoded into a single outgoing buffer, which is written
+ * to the access point (Pi) in one go once it holds a configured number of bytes or readings,
+ * or once the oldest reading in it has waited for the configured linger time.
+ * Appended readings belong to the batcher, which recycles them once their batch is settled.
+ */
+public class RelayBatcher {
+
+    /**
+     * Callback for readings that could not be delivered
+     */
+    public interface FlushListener {
+
+        /**
+         * Reports back the readings of a batch that failed to be written or was not acknowledged
+         * @param readings readings in the failed batch, in the order they were appended,
+         *                 recycled once this returns
+         */
+        void onFlushFailed(List<Reading> readings);
+    }
+
+    // debug use
+    private static final String TAG = "RelayBatcher";
+
+    private final RelayConnection mConnection;
+    private final FlushListener mListener;
+
+    // flush policy
+    private int mMaxBytes;
+    private int mMaxRecords;
+    private long mMaxLinger;
+
+    // outgoing buffer, and the readings it holds in case the batch has to be stored locally
+    private byte[] mBuffer;
+    private int mLength;
+    private final ArrayList<Reading> mReadings = new ArrayList<>();
+
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> mLingerFlush;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param connection connection to write the batches to
+     * @param listener   callback for batches that could not be delivered
+     * @param maxBytes   flush once the buffer holds this many bytes
+     * @param maxRecords flush once the buffer holds this many readings
+     * @param maxLinger  flush once the oldest reading has waited this long, in milliseconds
+     */
+    public RelayBatcher(RelayConnection connection, FlushListener listener, int maxBytes, int maxRecords, long maxLinger) {
+        mConnection = connection;
+        mListener = listener;
+        configure(maxBytes, maxRecords, maxLinger);
+    }
+
+    /**
+     * Update the flush policy, takes effect from the next appended reading
+     *
+     * @param maxBytes   flush once the buffer holds this many bytes
+     * @param maxRecords flush once the buffer holds this many readings
+     * @param maxLinger  flush once the oldest reading has waited this long, in milliseconds
+     */
+    public synchronized void configure(int maxBytes, int maxRecords, long maxLinger) {
+        mMaxBytes = Math.max(1, maxBytes);
+        mMaxRecords = Math.max(1, maxRecords);
+        mMaxLinger = Math.max(0, maxLinger);
+        if (mBuffer == null || mBuffer.length < mMaxBytes) {
+            byte[] buffer = new byte[mMaxBytes];
+            if (mBuffer != null) {
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            }
+            mBuffer = buffer;
+        }
+    }
+
+    /**
+     * Encode a reading into the outgoing buffer, flushing it if the policy says so
+     *
+     * @param reading reading to be sent
+     */
+    public synchronized void append(Reading reading) {
+        PacketCodec codec = mConnection.getCodec();
+
+        // make room, the buffer always has space for at least one record
+        if (mLength + codec.maxRecordLength() > mBuffer.length) {
+            flush();
+            if (codec.maxRecordLength() > mBuffer.length) {
+                mBuffer = new byte[codec.maxRecordLength()];
+            }
+        }
+
+        int length = codec.encode(reading, mBuffer, mLength);
+        if (length == 0) {
+            Log.w(TAG, "Reading cannot be encoded, dropped: " + reading);
+        }
+        mLength += length;
+        mReadings.add(reading);
+
+        if (mLength >= mMaxBytes || mReadings.size() >= mMaxRecords) {
+            flush();
+        } else if (mLingerFlush == null) {
+            // first reading of a new batch, make sure it does not wait longer than the linger time
+            mLingerFlush = mTimer.schedule(flush, mMaxLinger, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write everything in the outgoing buffer to the connection
+     * Blocks while the connection's send window is full.
+     */
+    public synchronized void flush() {
+        if (mLingerFlush != null) {
+            mLingerFlush.cancel(false);
+            mLingerFlush = null;
+        }
+        if (mReadings.isEmpty()) {
+            return;
+        }
+
+        // the readings are kept until the batch is confirmed, they go back to the listener if it is not
+        final ArrayList<Reading> readings = new ArrayList<>(mReadings);
+        try {
+            Log.i(TAG, "Flushing " + readings.size() + " readings, " + mLength + " bytes");
+            mConnection.send(mBuffer, 0, mLength, new SendWindow.Batch() {
+                @Override
+                public void onAcked() {
+                    recycle(readings);
+                }
+
+                @Override
+                public void onFailed() {
+                    Log.i(TAG, "Batch of " + readings.size() + " readings failed");
+                    mListener.onFlushFailed(readings);
+                    recycle(readings);
+                }
+            });
+        } catch (IOException e) {
+            Log.i(TAG, "Flush failed");
+        } finally {
+            mLength = 0;
+            mReadings.clear();
+            if (mBuffer.length > mMaxBytes) {
+                // shrink back after growing for a record larger than the batch size
+                mBuffer = new byte[mMaxBytes];
+            }
+        }
+    }
+
+    private static void recycle(List<Reading> readings) {
+        for (Reading reading : readings) {
+            reading.recycle();
+        }
+    }
+
+    /**
+     * @return number of readings waiting in the outgoing buffer
+     */
+    public synchronized int size() {
+        return mReadings.size();
+    }
+
+    /**
+     * Flush what is left and stop the linger timer, the batcher cannot be used afterwards
+     */
+    public synchronized void shutdown() {
+        flush();
+        mTimer.shutdownNow();
+    }
+}
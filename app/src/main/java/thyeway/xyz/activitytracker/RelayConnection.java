@@ -0,0 +1,458 @@
+package thyeway.xyz.activitytracker;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Long-lived connection to an access point (Pi)
+ * <p/>
+ * The socket is opened once and shared by everything that sends data to the Pi (live relay
+ * and the export of locally stored data). If a write fails, the socket is thrown away and
+ * re-established once before the failure is reported back to the caller.
+ * <p/>
+ * In acknowledged mode every batch is framed with an id (see RelayProtocol) and kept in a
+ * send window until the Pi acknowledges it, several batches can be in flight at once.
+ * Otherwise a batch counts as delivered as soon as it has been written.
+ * <p/>
+ * In acknowledged mode the relay can also offer compression. If the Pi accepts it, batches sent
+ * with compression requested (the backlog) go out as DEFLATE frames.
+ */
+public class RelayConnection {
+
+    // debug use
+    private static final String TAG = "RelayConnection";
+
+    private String mHost;
+    private int mPort;
+
+    // timeouts, in milliseconds
+    private int mConnectTimeout;
+    private int mWriteTimeout;
+
+    // wire format, its preamble is sent at the start of every connection
+    private PacketCodec mCodec;
+
+    // acknowledged delivery
+    private volatile boolean mAcknowledged;
+    private final SendWindow mWindow = new SendWindow(1);
+    private final byte[] mFrameHeader = new byte[RelayProtocol.FRAME_HEADER_LENGTH];
+
+    // compression, offered in the handshake and only used if the access point accepted it
+    private boolean mCompression;
+    private boolean mDeflate;
+    private final Deflater mDeflater = new Deflater();
+    private byte[] mDeflateBuffer = new byte[0];
+
+    private Socket mSocket;
+    private OutputStream mOutputStream;
+
+    // java sockets have no write timeout, a watchdog closes the socket if a write blocks for too long
+    private final ScheduledExecutorService mWatchdog = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Constructor
+     *
+     * @param host           host name or IP of the access point
+     * @param port           listening port of the access point
+     * @param connectTimeout connect timeout, in milliseconds
+     * @param writeTimeout   write timeout, in milliseconds
+     * @param codec          wire format used on this connection
+     */
+    public RelayConnection(String host, int port, int connectTimeout, int writeTimeout, PacketCodec codec) {
+        configure(host, port, connectTimeout, writeTimeout, codec);
+    }
+
+    /**
+     * Update the connection settings, the socket is closed if the destination or wire format changed
+     *
+     * @param host           host name or IP of the access point
+     * @param port           listening port of the access point
+     * @param connectTimeout connect timeout, in milliseconds
+     * @param writeTimeout   write timeout, in milliseconds
+     * @param codec          wire format used on this connection
+     */
+    public synchronized void configure(String host, int port, int connectTimeout, int writeTimeout, PacketCodec codec) {
+        if (mSocket != null && (port != mPort || host == null || !host.equals(mHost)
+                || codec.getClass() != mCodec.getClass())) {
+            close();
+        }
+        mHost = host;
+        mPort = port;
+        mConnectTimeout = connectTimeout;
+        mWriteTimeout = writeTimeout;
+        mCodec = codec;
+    }
+
+    /**
+     * Switch acknowledged delivery on or off, the socket is closed if the mode changed
+     *
+     * @param acknowledged true to keep batches until the access point acknowledges them
+     * @param windowSize   maximum number of unacknowledged batches in flight
+     */
+    public synchronized void setAcknowledged(boolean acknowledged, int windowSize) {
+        if (mSocket != null && acknowledged != mAcknowledged) {
+            close();
+        }
+        mAcknowledged = acknowledged;
+        mWindow.setSize(windowSize);
+    }
+
+    /**
+     * Offer compressed frames to the access point, the socket is closed if this changed
+     * Only takes effect in acknowledged mode, which is where the offer is negotiated.
+     *
+     * @param compression true to send compressed frames when the access point accepts them
+     */
+    public synchronized void setCompression(boolean compression) {
+        if (mSocket != null && compression != mCompression) {
+            close();
+        }
+        mCompression = compression;
+    }
+
+    /**
+     * @return true if compressed frames were agreed on for the current socket
+     */
+    public synchronized boolean isCompressing() {
+        return isOpen() && mDeflate;
+    }
+
+    /**
+     * @return wire format used on this connection
+     */
+    public synchronized PacketCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return write timeout, in milliseconds
+     */
+    public synchronized int getWriteTimeout() {
+        return mWriteTimeout;
+    }
+
+    /**
+     * @return number of batches waiting to be acknowledged
+     */
+    public int getUnacknowledged() {
+        return mWindow.inFlight();
+    }
+
+    /**
+     * @return true if the socket is currently open
+     */
+    public synchronized boolean isOpen() {
+        return mSocket != null && mSocket.isConnected() && !mSocket.isClosed();
+    }
+
+    /**
+     * Open the socket if it is not already open
+     *
+     * @throws IOException if the access point cannot be reached
+     */
+    public synchronized void open() throws IOException {
+        if (isOpen()) {
+            return;
+        }
+        close();
+
+        Log.i(TAG, "Connecting to " + mHost + ":" + mPort);
+        Socket socket = new Socket();
+        try {
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeout);
+            mOutputStream = socket.getOutputStream();
+            mSocket = socket;
+            mDeflate = false;
+
+            // announce the wire format before anything else goes out
+            byte[] preamble = mCodec.preamble();
+            if (preamble.length > 0) {
+                writeWithTimeout(null, preamble, 0, preamble.length);
+            }
+
+            if (mAcknowledged) {
+                handshake(socket);
+            }
+        } catch (IOException e) {
+            mSocket = null;
+            mOutputStream = null;
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Agree on acknowledged delivery with the access point and start reading its acknowledgements
+     *
+     * @param socket freshly opened socket
+     * @throws IOException if the access point does not support acknowledged delivery
+     */
+    private void handshake(final Socket socket) throws IOException {
+        int offered = RelayProtocol.FLAG_ACK | (mCompression ? RelayProtocol.FLAG_DEFLATE : 0);
+        byte[] hello = RelayProtocol.hello(offered);
+        writeWithTimeout(null, hello, 0, hello.length);
+
+        final DataInputStream input = new DataInputStream(socket.getInputStream());
+        byte[] reply = new byte[RelayProtocol.HELLO_LENGTH];
+        socket.setSoTimeout(mConnectTimeout);
+        input.readFully(reply);
+        int flags = RelayProtocol.parseHello(reply);
+        if (flags < 0 || (flags & RelayProtocol.FLAG_ACK) == 0) {
+            throw new IOException("Access point does not support acknowledged delivery");
+        }
+        socket.setSoTimeout(0);
+        mDeflate = (flags & offered & RelayProtocol.FLAG_DEFLATE) != 0;
+        Log.i(TAG, "Acknowledged delivery agreed" + (mDeflate ? ", compressed" : ""));
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAcknowledgements(socket, input);
+            }
+        }, "RelayAckReader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAcknowledgements(Socket socket, DataInputStream input) {
+        try {
+            while (true) {
+                int type = input.readUnsignedByte();
+                if (type != RelayProtocol.MESSAGE_ACK) {
+                    throw new IOException("Unexpected message " + type);
+                }
+                mWindow.ack(input.readLong());
+            }
+        } catch (IOException e) {
+            // only tear down the connection if it is still the current one
+            synchronized (this) {
+                if (mSocket == socket) {
+                    Log.i(TAG, "Connection lost while waiting for acknowledgements");
+                    close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write data to the access point, the socket is re-established once if the write fails
+     *
+     * @param data data to be sent
+     * @throws IOException if the data could not be sent
+     */
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Write part of a buffer to the access point, the socket is re-established once if the write fails
+     *
+     * @param data   buffer holding the data to be sent
+     * @param offset start of the data in the buffer
+     * @param length number of bytes to send
+     * @throws IOException if the data could not be sent
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        send(data, offset, length, new SendWindow.Batch() {
+            @Override
+            public void onAcked() {
+            }
+
+            @Override
+            public void onFailed() {
+            }
+        });
+    }
+
+    /**
+     * Send a batch to the access point
+     * <p/>
+     * The outcome is reported through the batch: straight away once written, or in acknowledged
+     * mode when the access point acknowledges it, or when the connection goes down before that.
+     * Without acknowledgements, the socket is re-established once if the write fails.
+     *
+     * @param data   buffer holding the batch, can be reused once this returns
+     * @param offset start of the batch in the buffer
+     * @param length number of bytes to send
+     * @param batch  outcome of the batch, called exactly once
+     * @throws IOException if the connection is down, the batch has been failed already
+     */
+    public void send(byte[] data, int offset, int length, SendWindow.Batch batch) throws IOException {
+        send(data, offset, length, batch, false);
+    }
+
+    /**
+     * Send a batch to the access point, compressed if requested and agreed with the access point
+     *
+     * @param data     buffer holding the batch, can be reused once this returns
+     * @param offset   start of the batch in the buffer
+     * @param length   number of bytes to send
+     * @param batch    outcome of the batch, called exactly once
+     * @param compress true to compress the batch, worth it for large batches only
+     * @throws IOException if the connection is down, the batch has been failed already
+     * @see #send(byte[], int, int, SendWindow.Batch)
+     */
+    public void send(byte[] data, int offset, int length, SendWindow.Batch batch, boolean compress) throws IOException {
+        boolean acknowledged = mAcknowledged;
+        if (acknowledged) {
+            // wait outside the lock, the acknowledgement reader needs it to report a dead connection,
+            // the room is reserved so another sender cannot take it before this batch is registered
+            try {
+                mWindow.reserve(mWriteTimeout);
+            } catch (IOException e) {
+                close();
+                batch.onFailed();
+                throw e;
+            }
+        }
+        sendLocked(data, offset, length, batch, compress, acknowledged);
+    }
+
+    /**
+     * @param acknowledged true if room was reserved in the window for the batch
+     */
+    private synchronized void sendLocked(byte[] data, int offset, int length, SendWindow.Batch batch, boolean compress,
+                                         boolean acknowledged) throws IOException {
+        boolean reused = isOpen();
+        try {
+            open();
+        } catch (IOException e) {
+            if (acknowledged) {
+                mWindow.release();
+            }
+            batch.onFailed();
+            throw e;
+        }
+
+        if (acknowledged) {
+            // register before writing, the acknowledgement can arrive before write returns
+            long id = mWindow.register(batch);
+            try {
+                if (compress && mDeflate) {
+                    int compressed = deflate(data, offset, length);
+                    RelayProtocol.frameHeader(mFrameHeader, RelayProtocol.MESSAGE_DEFLATE_FRAME, id, compressed);
+                    writeWithTimeout(mFrameHeader, mDeflateBuffer, 0, compressed);
+                } else {
+                    RelayProtocol.frameHeader(mFrameHeader, RelayProtocol.MESSAGE_FRAME, id, length);
+                    writeWithTimeout(mFrameHeader, data, offset, length);
+                }
+            } catch (IOException e) {
+                // fails the window, this batch included
+                close();
+                throw e;
+            }
+            return;
+        }
+
+        try {
+            writeWithTimeout(null, data, offset, length);
+        } catch (IOException e) {
+            close();
+            // a socket that was already open may have gone stale (e.g. the Pi restarted),
+            // give it one more chance on a fresh socket
+            if (!reused) {
+                batch.onFailed();
+                throw e;
+            }
+            Log.i(TAG, "Write failed, reconnecting");
+            try {
+                open();
+                writeWithTimeout(null, data, offset, length);
+            } catch (IOException retry) {
+                close();
+                batch.onFailed();
+                throw retry;
+            }
+        }
+        batch.onAcked();
+    }
+
+    /**
+     * Compress a batch into mDeflateBuffer, on its own so the frame can be inflated independently
+     *
+     * @return compressed length
+     */
+    private int deflate(byte[] data, int offset, int length) {
+        mDeflater.reset();
+        mDeflater.setInput(data, offset, length);
+        mDeflater.finish();
+
+        int compressed = 0;
+        while (!mDeflater.finished()) {
+            if (compressed == mDeflateBuffer.length) {
+                byte[] buffer = new byte[Math.max(1024, mDeflateBuffer.length * 2)];
+                System.arraycopy(mDeflateBuffer, 0, buffer, 0, compressed);
+                mDeflateBuffer = buffer;
+            }
+            compressed += mDeflater.deflate(mDeflateBuffer, compressed, mDeflateBuffer.length - compressed);
+        }
+        return compressed;
+    }
+
+    private void writeWithTimeout(byte[] header, byte[] data, int offset, int length) throws IOException {
+        final Socket socket = mSocket;
+        ScheduledFuture<?> watchdog = mWatchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "Write timed out");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore, the blocked write will fail anyway
+                }
+            }
+        }, mWriteTimeout, TimeUnit.MILLISECONDS);
+
+        try {
+            if (header != null) {
+                mOutputStream.write(header);
+            }
+            mOutputStream.write(data, offset, length);
+            mOutputStream.flush();
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Close the socket, it will be re-opened on the next write
+     * Batches still waiting to be acknowledged are failed.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // nothing to do, the socket is discarded anyway
+                }
+            }
+            mSocket = null;
+            mOutputStream = null;
+        }
+        // the failed batches will be sent again after the reconnect
+        mWindow.fail();
+    }
+
+    /**
+     * Close the socket and release the watchdog, the connection cannot be used afterwards
+     */
+    public void shutdown() {
+        close();
+        mWatchdog.shutdownNow();
+        synchronized (this) {
+            mDeflater.end();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Framing used by the acknowledged delivery mode, on top of the wire format (PacketCodec)
+ * <p/>
+ * After the wire format preamble, the relay sends a HELLO and waits for the access point (Pi)
+ * to answer with a HELLO of its own, carrying the flags it accepts. From then on every batch
+ * goes out as a FRAME, and the access point answers with cumulative ACKs. If both sides set
+ * FLAG_DEFLATE, batches may also go out as a DEFLATE_FRAME, whose payload is the zlib (DEFLATE)
+ * compressed records, each frame compressed on its own. All values big-endian:
+ * <pre>
+ *   HELLO:         'R' 'A' u8 version u8 flags
+ *   FRAME:         'F' u64 batch id  u32 payload length  payload (records in the wire format)
+ *   DEFLATE_FRAME: 'Z' u64 batch id  u32 payload length  payload (compressed records)
+ *   ACK:           'K' u64 id of the last batch processed, covers every batch before it
+ * </pre>
+ */
+public final class RelayProtocol {
+
+    public static final byte[] MAGIC = {'R', 'A'};
+    public static final int VERSION = 1;
+
+    // HELLO flags
+    public static final int FLAG_ACK = 0x01;
+    public static final int FLAG_DEFLATE = 0x02;
+
+    // message types
+    public static final int MESSAGE_FRAME = 'F';
+    public static final int MESSAGE_DEFLATE_FRAME = 'Z';
+    public static final int MESSAGE_ACK = 'K';
+
+    public static final int HELLO_LENGTH = 4;
+    public static final int FRAME_HEADER_LENGTH = 1 + 8 + 4;
+
+    private RelayProtocol() {
+    }
+
+    /**
+     * @param flags flags to announce
+     * @return HELLO message
+     */
+    public static byte[] hello(int flags) {
+        return new byte[]{MAGIC[0], MAGIC[1], VERSION, (byte) flags};
+    }
+
+    /**
+     * @param hello HELLO received from the other side
+     * @return flags carried by the HELLO, or -1 if it is not a valid HELLO
+     */
+    public static int parseHello(byte[] hello) {
+        if (hello.length != HELLO_LENGTH || hello[0] != MAGIC[0] || hello[1] != MAGIC[1] || hello[2] != VERSION) {
+            return -1;
+        }
+        return hello[3] & 0xFF;
+    }
+
+    /**
+     * Write a FRAME or DEFLATE_FRAME header into a buffer
+     *
+     * @param buffer buffer of at least FRAME_HEADER_LENGTH bytes
+     * @param type   MESSAGE_FRAME or MESSAGE_DEFLATE_FRAME
+     * @param id     batch id
+     * @param length payload length
+     */
+    public static void frameHeader(byte[] buffer, int type, long id, int length) {
+        buffer[0] = (byte) type;
+        for (int i = 0; i < 8; i++) {
+            buffer[1 + i] = (byte) (id >> (56 - 8 * i));
+        }
+        buffer[9] = (byte) (length >> 24);
+        buffer[10] = (byte) (length >> 16);
+        buffer[11] = (byte) (length >> 8);
+        buffer[12] = (byte) length;
+    }
+}
@@ -0,0 +1,181 @@
+package thyeway.xyz.activitytracker;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue between the GATT callbacks (producers) and a single relay worker thread (consumer)
+ * <p/>
+ * What happens to a reading that arrives while the queue is full is decided by the overflow policy.
+ */
+public class RelayQueue {
+
+    /**
+     * What to do with a reading when the queue is full
+     */
+    public enum OverflowPolicy {
+        SPILL,          // hand the new reading to the listener to be stored locally
+        DROP_OLDEST,    // discard the oldest queued reading to make room
+        BLOCK           // wait until the worker makes room
+    }
+
+    /**
+     * Callback for readings leaving the queue
+     */
+    public interface Listener {
+
+        /**
+         * A reading taken off the queue, called on the relay worker thread
+         * @param reading reading to be relayed
+         */
+        void onReading(Reading reading);
+
+        /**
+         * A reading that did not fit in the queue (SPILL), or was still queued on shutdown,
+         * called on the producer thread
+         * @param reading reading to be stored locally
+         */
+        void onOverflow(Reading reading);
+    }
+
+    // debug use
+    private static final String TAG = "RelayQueue";
+
+    // how long shutdown waits for the worker to finish the reading it is relaying, in milliseconds
+    private static final long SHUTDOWN_TIMEOUT = 1000;
+
+    private final ArrayBlockingQueue<Reading> mQueue;
+    private final Listener mListener;
+    private volatile OverflowPolicy mPolicy;
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mSpilled = new AtomicLong();
+
+    private final Thread mWorker;
+
+    /**
+     * Constructor, starts the relay worker thread
+     *
+     * @param capacity maximum number of queued readings
+     * @param policy   what to do with a reading when the queue is full
+     * @param listener callback for readings leaving the queue
+     */
+    public RelayQueue(int capacity, OverflowPolicy policy, Listener listener) {
+        mQueue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        mPolicy = policy;
+        mListener = listener;
+
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Reading reading = mQueue.take();
+                        try {
+                            mListener.onReading(reading);
+                        } catch (RuntimeException e) {
+                            // one bad reading must not stop the worker
+                            Log.e(TAG, "Failed to relay " + reading, e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // shutting down
+                }
+            }
+        }, "RelayWorker");
+        mWorker.start();
+    }
+
+    /**
+     * @param policy what to do with a reading when the queue is full
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Queue a reading to be relayed
+     *
+     * @param reading reading to be relayed
+     */
+    public void offer(Reading reading) {
+        if (mQueue.offer(reading)) {
+            return;
+        }
+
+        switch (mPolicy) {
+            case SPILL:
+                mSpilled.incrementAndGet();
+                mListener.onOverflow(reading);
+                break;
+            case DROP_OLDEST:
+                // another producer may take the freed slot, keep going until this reading is in
+                while (!mQueue.offer(reading)) {
+                    Reading dropped = mQueue.poll();
+                    if (dropped != null) {
+                        mDropped.incrementAndGet();
+                        dropped.recycle();
+                    }
+                }
+                break;
+            case BLOCK:
+                try {
+                    mQueue.put(reading);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mListener.onOverflow(reading);
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return number of readings waiting for the relay worker
+     */
+    public int depth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return maximum number of queued readings
+     */
+    public int capacity() {
+        return mQueue.size() + mQueue.remainingCapacity();
+    }
+
+    /**
+     * @return number of readings discarded by DROP_OLDEST
+     */
+    public long dropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return number of readings handed to the listener by SPILL
+     */
+    public long spilled() {
+        return mSpilled.get();
+    }
+
+    /**
+     * Stop the relay worker, readings still queued are handed to the listener as overflow
+     */
+    public void shutdown() {
+        mWorker.interrupt();
+        try {
+            mWorker.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        ArrayList<Reading> remaining = new ArrayList<>();
+        mQueue.drainTo(remaining);
+        Log.i(TAG, "Shutting down, " + remaining.size() + " readings left");
+        for (Reading reading : remaining) {
+            mListener.onOverflow(reading);
+        }
+    }
+}
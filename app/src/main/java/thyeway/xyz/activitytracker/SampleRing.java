@@ -0,0 +1,108 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Fixed-size ring of 3-axis samples, kept in primitive arrays so decoding allocates nothing
+ * <p/>
+ * When the ring is full the oldest sample is overwritten. Not thread-safe, ImuSensor locks
+ * around it.
+ */
+public class SampleRing {
+
+    public static final int AXES = 3;
+
+    private final int[] mSequence;
+    private final long[] mTime;
+    private final float[] mValues;  // AXES per sample
+
+    private int mHead;              // index of the oldest sample
+    private int mSize;
+    private long mOverwritten;
+
+    /**
+     * @param capacity maximum number of samples held
+     */
+    public SampleRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mSequence = new int[capacity];
+        mTime = new long[capacity];
+        mValues = new float[capacity * AXES];
+    }
+
+    /**
+     * Add a sample, overwriting the oldest one if the ring is full
+     */
+    public void put(int sequence, long time, float x, float y, float z) {
+        int index;
+        if (mSize == mSequence.length) {
+            index = mHead;
+            mHead = (mHead + 1) % mSequence.length;
+            mOverwritten++;
+        } else {
+            index = (mHead + mSize) % mSequence.length;
+            mSize++;
+        }
+        mSequence[index] = sequence;
+        mTime[index] = time;
+        int base = index * AXES;
+        mValues[base] = x;
+        mValues[base + 1] = y;
+        mValues[base + 2] = z;
+    }
+
+    /**
+     * @param i sample index, 0 for the oldest
+     */
+    public int sequenceAt(int i) {
+        return mSequence[index(i)];
+    }
+
+    /**
+     * @param i sample index, 0 for the oldest
+     */
+    public long timeAt(int i) {
+        return mTime[index(i)];
+    }
+
+    /**
+     * @param i    sample index, 0 for the oldest
+     * @param axis 0 to AXES - 1
+     */
+    public float valueAt(int i, int axis) {
+        return mValues[index(i) * AXES + axis];
+    }
+
+    /**
+     * Drop the oldest samples
+     *
+     * @param count number of samples to drop, at most size()
+     */
+    public void remove(int count) {
+        count = Math.min(count, mSize);
+        mHead = (mHead + count) % mSequence.length;
+        mSize -= count;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mSequence.length;
+    }
+
+    /**
+     * @return number of samples lost because the ring was full
+     */
+    public long overwritten() {
+        return mOverwritten;
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("Sample " + i + " of " + mSize);
+        }
+        return (mHead + i) % mSequence.length;
+    }
+}
@@ -10,7 +10,10 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -20,6 +23,8 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelUuid;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -37,7 +42,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * ScanDeviceActivity - main activity
@@ -63,6 +73,15 @@ public class ScanDeviceActivity extends AppCompatActivity {
     // result codes
     private static final int REQUEST_ENABLE_BT = 1;
 
+    // probing devices that do not advertise their services: how many at once, how long each may
+    // take, and how long a device that is not a sensor is left alone, in milliseconds
+    private static final int MAX_PROBES = 2;
+    private static final long PROBE_TIMEOUT = 10000;
+    private static final long PROBE_NEGATIVE_TTL = 10 * 60 * 1000;
+
+    // timer for the probe timeouts
+    private ScheduledExecutorService mProbeTimer;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -76,6 +95,7 @@ public class ScanDeviceActivity extends AppCompatActivity {
         // TODO: Check if bluetooth or location service is available
 
         mHandler = new Handler();
+        mProbeTimer = Executors.newSingleThreadScheduledExecutor();
 
         // get the default bluetooth adapter for this device
         BluetoothManager bluetoothManager = (BluetoothManager)getSystemService(Context.BLUETOOTH_SERVICE);
@@ -153,6 +173,10 @@ public class ScanDeviceActivity extends AppCompatActivity {
         super.onDestroy();
         unbindService(mServiceConnection);
         mSensorLoggingService = null;
+        if (mLeBluetoothDevicesAdapter != null) {
+            mLeBluetoothDevicesAdapter.shutdown();
+        }
+        mProbeTimer.shutdownNow();
     }
 
     @Override
@@ -188,9 +212,22 @@ public class ScanDeviceActivity extends AppCompatActivity {
             }
         }, SCAN_PERIOD);
 
-        // note: we can also scan for device that advertises certain services
-        // we can do that using startLeScan(UUID[], callback);
-        mBluetoothAdapter.getBluetoothLeScanner().startScan(mLeScanCallBack);
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build();
+
+        // sensors that advertise their service can be filtered by the controller, devices that do
+        // not are only found by scanning everything and probing the ones that advertise nothing
+        boolean probe = PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(getResources().getString(R.string.preference_probe_unadvertised), true);
+        List<ScanFilter> filters = null;
+        if (!probe) {
+            filters = new ArrayList<>();
+            for (UUID service : SensorDescriptors.services()) {
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(service)).build());
+            }
+        }
+        scanner.startScan(filters, settings, mLeScanCallBack);
     }
 
     /**
@@ -199,12 +236,7 @@ public class ScanDeviceActivity extends AppCompatActivity {
      */
     private ScanCallback mLeScanCallBack = new ScanCallback() {
         public void onScanResult(int callbackType, final ScanResult result) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeBluetoothDevicesAdapter.add(result.getDevice());
-                }
-            });
+            mLeBluetoothDevicesAdapter.add(result);
         }
     };
 
@@ -274,12 +306,21 @@ public class ScanDeviceActivity extends AppCompatActivity {
         private ArrayList<Sensor> mLeDevicesSelected;
         private LayoutInflater mInflater;
 
+        // sensors found so far, shared with the logging service
+        private final SensorRegistry mRegistry = SensorRegistry.getInstance();
+
+
+        // devices that advertise no service are connected to, a few at a time, to find out
+        private final ProbeQueue mProbes;
+        private final HashMap<String, BluetoothGatt> mProbing = new HashMap<>();
+
         public BluetoothDevicesAdapter(Context context, int textViewResourceId) {
             super(context, textViewResourceId);
             this.mLeDevices = new ArrayList<Sensor>();
             this.mLeDevicesSelected = new ArrayList<Sensor>();
-            this.mLeDevices.addAll(mLeDevices);
+            this.mLeDevices.addAll(mRegistry.sensors());
             mInflater = ScanDeviceActivity.this.getLayoutInflater();
+            mProbes = new ProbeQueue(mProber, mProbeTimer, MAX_PROBES, PROBE_TIMEOUT, PROBE_NEGATIVE_TTL);
         }
 
         private class ViewHolder {
@@ -289,19 +330,94 @@ public class ScanDeviceActivity extends AppCompatActivity {
             ImageButton deviceInfo;
         }
 
-        @Override
-        public void add(BluetoothDevice device) {
-            boolean exist = false;
-            for(Sensor sensor : mLeDevices) {
-                if(sensor.device_mac.equalsIgnoreCase(device.getAddress())) {
-                    exist = true;
-                    break;
+        /**
+         * Sort out a scanned device: sensors are recognised from their advertisement where possible,
+         * devices that advertise no service at all are probed
+         */
+        public void add(ScanResult result) {
+            BluetoothDevice device = result.getDevice();
+            if (mRegistry.contains(device.getAddress())) {
+                return;
+            }
+            // sensors seen in a previous run are rebuilt from their cached layout, no need to connect
+            Sensor cached = GattCache.getInstance(getApplicationContext()).createSensor(device.getAddress());
+            if (cached != null) {
+                found(cached);
+                return;
+            }
+
+            ScanRecord record = result.getScanRecord();
+            List<ParcelUuid> services = record == null ? null : record.getServiceUuids();
+            Map<ParcelUuid, byte[]> serviceData = record == null ? null : record.getServiceData();
+            Sensor sensor = fromAdvertisement(services, device);
+            if (sensor == null && serviceData != null) {
+                sensor = fromAdvertisement(serviceData.keySet(), device);
+            }
+
+            if (sensor != null) {
+                found(sensor);
+            } else if ((services == null || services.isEmpty()) && (serviceData == null || serviceData.isEmpty())) {
+                mProbes.offer(device.getAddress());
+            }
+            // otherwise it advertises services, none of which is a sensor's
+        }
+
+        private Sensor fromAdvertisement(Iterable<ParcelUuid> services, BluetoothDevice device) {
+            if (services == null) {
+                return null;
+            }
+            for (ParcelUuid service : services) {
+                Sensor sensor = SensorDescriptors.createSensor(service.getUuid(), device.getName(), device.getAddress());
+                if (sensor != null) {
+                    return sensor;
                 }
             }
+            return null;
+        }
 
-            if (!exist) {
-                device.connectGatt(getApplicationContext(), false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+        private final ProbeQueue.Prober mProber = new ProbeQueue.Prober() {
+            @Override
+            public void probe(String mac) {
+                BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mac);
+                synchronized (mProbing) {
+                    mProbing.put(mac, device.connectGatt(getApplicationContext(), false, mGattCallback, BluetoothDevice.TRANSPORT_LE));
+                }
+            }
+
+            @Override
+            public void cancel(String mac) {
+                BluetoothGatt gatt;
+                synchronized (mProbing) {
+                    gatt = mProbing.remove(mac);
+                }
+                if (gatt != null) {
+                    gatt.disconnect();
+                    gatt.close();
+                }
+            }
+        };
+
+        /**
+         * Stop probing, called when the activity goes away
+         */
+        void shutdown() {
+            mProbes.shutdown();
+        }
+
+        /**
+         * Register a sensor and list it, unless it is already known
+         */
+        private void found(final Sensor sensor) {
+            if (mRegistry.putIfAbsent(sensor) != null) {
+                return;
             }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mLeDevices.add(sensor);
+                    notifyDataSetChanged();
+                }
+            });
         }
 
         private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
@@ -310,40 +426,50 @@ public class ScanDeviceActivity extends AppCompatActivity {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
                     gatt.discoverServices();
                 } else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    String mac = gatt.getDevice().getAddress();
+                    boolean probing;
+                    synchronized (mProbing) {
+                        probing = mProbing.remove(mac) != null;
+                    }
                     gatt.close();
+                    if (probing) {
+                        // disconnected before its services were known, says nothing about the device
+                        mProbes.failed(mac);
+                    }
                 }
             }
 
             @Override
             public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                boolean sensor = false;
                 if (status == BluetoothGatt.GATT_SUCCESS) {
                     List<BluetoothGattService> gattServices = gatt.getServices();
 
                     // for each service, get all its characteristics and add it to the queue
                     for (BluetoothGattService s : gattServices) {
                         Log.i(TAG, "SERVICE: " + s.getUuid());
-                        SensorFactory sensorFactory = new SensorFactory();
-                        Sensor newSensor = sensorFactory.getSensor(s.getUuid().toString(), gatt.getDevice().getName(), gatt.getDevice().getAddress());
+                        Sensor newSensor = SensorDescriptors.createSensor(s.getUuid(), gatt.getDevice().getName(), gatt.getDevice().getAddress());
                         if(newSensor != null) {
                             Log.i(TAG, "Valid sensor: " + newSensor.getClass().toString());
-                            for(Sensor sensor : mLeDevices) {
-                                if(sensor.device_mac.equalsIgnoreCase(newSensor.device_mac)) {
-                                    return;
-                                }
-                            }
-                            mLeDevices.add(newSensor);
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    notifyDataSetChanged();
-                                }
-                            });
+                            GattCache.getInstance(getApplicationContext()).put(gatt.getDevice().getAddress(),
+                                    GattLayout.of(s, newSensor.gatt_characteristics, gatt.getDevice().getName()));
+                            found(newSensor);
+                            sensor = true;
                             break;
                         }
                     }
-                    gatt.disconnect();
                 }
 
+                String mac = gatt.getDevice().getAddress();
+                synchronized (mProbing) {
+                    mProbing.remove(mac);
+                }
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mProbes.finished(mac, sensor);
+                } else {
+                    mProbes.failed(mac);
+                }
+                gatt.disconnect();
             }
         };
 
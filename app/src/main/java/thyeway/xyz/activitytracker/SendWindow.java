@@ -0,0 +1,152 @@
+package thyeway.xyz.activitytracker;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Batches sent to an access point (Pi) that are waiting to be acknowledged
+ * <p/>
+ * Batch ids increase monotonically. An acknowledgement is cumulative, it confirms the given batch
+ * and every batch sent before it. The number of batches in flight is bounded by the window size,
+ * senders reserve room before sending more, so concurrent senders cannot overrun the window.
+ */
+public class SendWindow {
+
+    /**
+     * Outcome of a batch, exactly one of the two is called for every registered batch
+     */
+    public interface Batch {
+
+        /**
+         * The access point confirmed the batch
+         */
+        void onAcked();
+
+        /**
+         * The connection went down before the batch was confirmed
+         */
+        void onFailed();
+    }
+
+    private static class Entry {
+        final long id;
+        final Batch batch;
+
+        Entry(long id, Batch batch) {
+            this.id = id;
+            this.batch = batch;
+        }
+    }
+
+    private final ArrayDeque<Entry> mInFlight = new ArrayDeque<>();
+    private int mReserved;      // room taken by batches about to be registered
+    private int mSize;
+    private long mNextId = 1;
+
+    /**
+     * @param size maximum number of batches in flight
+     */
+    public SendWindow(int size) {
+        setSize(size);
+    }
+
+    /**
+     * @param size maximum number of batches in flight
+     */
+    public synchronized void setSize(int size) {
+        mSize = Math.max(1, size);
+        notifyAll();
+    }
+
+    /**
+     * Wait until there is room for another batch and reserve it, register() or release() must follow
+     *
+     * @param timeout how long to wait, in milliseconds
+     * @throws IOException if no acknowledgement made room in time
+     */
+    public synchronized void reserve(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (mInFlight.size() + mReserved >= mSize) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("No acknowledgement within " + timeout + "ms");
+                }
+                wait(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for acknowledgement");
+        }
+        mReserved++;
+    }
+
+    /**
+     * Give back room reserved for a batch that will not be sent
+     */
+    public synchronized void release() {
+        if (mReserved > 0) {
+            mReserved--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Register a batch that is about to be sent, in the room reserved for it, must be called in
+     * sending order
+     *
+     * @param batch batch to be sent
+     * @return id the batch has to be sent with
+     */
+    public synchronized long register(Batch batch) {
+        if (mReserved > 0) {
+            mReserved--;
+        }
+        long id = mNextId++;
+        mInFlight.addLast(new Entry(id, batch));
+        return id;
+    }
+
+    /**
+     * Confirm a batch and every batch before it
+     *
+     * @param id id of the last batch processed by the access point
+     */
+    public void ack(long id) {
+        ArrayList<Batch> acked = new ArrayList<>();
+        synchronized (this) {
+            while (!mInFlight.isEmpty() && mInFlight.peekFirst().id <= id) {
+                acked.add(mInFlight.pollFirst().batch);
+            }
+            notifyAll();
+        }
+        // outside the lock, the callbacks may touch the database
+        for (Batch batch : acked) {
+            batch.onAcked();
+        }
+    }
+
+    /**
+     * Fail every batch in flight, e.g. because the connection went down
+     */
+    public void fail() {
+        ArrayList<Batch> failed = new ArrayList<>();
+        synchronized (this) {
+            while (!mInFlight.isEmpty()) {
+                failed.add(mInFlight.pollFirst().batch);
+            }
+            notifyAll();
+        }
+        for (Batch batch : failed) {
+            batch.onFailed();
+        }
+    }
+
+    /**
+     * @return number of batches waiting to be acknowledged
+     */
+    public synchronized int inFlight() {
+        return mInFlight.size();
+    }
+}
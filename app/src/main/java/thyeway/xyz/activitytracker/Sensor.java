@@ -4,39 +4,133 @@ package thyeway.xyz.activitytracker;
 import android.bluetooth.BluetoothGattCharacteristic;
 
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
 
 public abstract class Sensor {
 
     String device_mac;
+    final long mac_key;     // device_mac as a 48-bit number, see SensorRegistry
+    volatile boolean tracked;
     String device_name;
-    String device_id;
-    String sensor_value;
-    String sequence_number; // for debugging purpose only?
-    String service_uuid;
-    ArrayList<String> gatt_characteristics;
+    int device_id;
+    float sensor_value;
+    int sequence_number;
+    boolean has_value;              // sensor_value holds a value for the current reading
+    boolean has_sequence_number;    // sequence_number holds a value for the current reading
+    UUID service_uuid;
+    Set<UUID> gatt_characteristics;
+    UUID packed_uuid;       // characteristic carrying several samples at once, used instead of the others if present, can be null
+    long poll_interval;     // milliseconds between polls, 0 to use the interval from settings, see SensorDescriptor
+    int priority;           // above 0 keeps its connection when sensors have to take turns, see SensorDescriptor
+    final SequenceTracker sequences = new SequenceTracker();    // duplicate and missed samples
+    volatile DeadBandFilter filter;         // drops readings that barely changed, can be null
+    volatile WindowAggregator aggregator;   // summarises the readings before they are relayed, can be null
+    final ArrayList<Reading> packed_readings = new ArrayList<>();   // reused for every packed value, lock it while in use
 
     Queue<BluetoothGattCharacteristic> characteristicsQueue;
     Queue<BluetoothGattCharacteristic> characteristicsReadQueue;
+    Queue<BluetoothGattCharacteristic> subscriptionQueue;   // waiting for notifications to be enabled
 
 
     public Sensor(String device_name, String mac) {
         this.device_name = device_name;
         this.device_mac = mac;
+        this.mac_key = SensorRegistry.parseMac(mac);
     }
 
-    public abstract void updateData(String UUID, byte[] value);
+    public abstract void updateData(UUID uuid, byte[] value);
 
-    public abstract void addToQueue(BluetoothGattCharacteristic characteristic);
+    /**
+     * @param characteristic characteristic to poll
+     */
+    public void addToQueue(BluetoothGattCharacteristic characteristic) {
+        if (this.characteristicsQueue == null) {
+            this.characteristicsQueue = new LinkedList<>();
+        }
+        this.characteristicsQueue.add(characteristic);
+    }
 
-    public abstract BluetoothGattCharacteristic getQueueNext();
+    /**
+     * @return next characteristic to read in this poll, null if none left
+     */
+    public BluetoothGattCharacteristic getQueueNext() {
+        return this.characteristicsReadQueue == null ? null : this.characteristicsReadQueue.poll();
+    }
 
-    public abstract void prepareReadQueue();
+    /**
+     * Start a poll, queueing every polled characteristic for reading
+     */
+    public void prepareReadQueue() {
+        this.characteristicsReadQueue = new LinkedList<>(this.characteristicsQueue);
+    }
 
-    public abstract boolean readReady();
+    /**
+     * @return true if the sensor has characteristics to poll
+     */
+    public boolean readReady() {
+        // characteristics received through notifications are not polled
+        return this.characteristicsQueue != null && !this.characteristicsQueue.isEmpty();
+    }
 
     public abstract void emptyData();
 
-    public abstract String createPacket(String time);
+    public abstract Reading createReading(long time);
+
+    /**
+     * @return true once every characteristic of a reading has a value, however it arrived
+     */
+    public abstract boolean isComplete();
+
+    /**
+     * Decode a value of the packed characteristic, one reading per sample
+     *
+     * @param value    value of the packed characteristic
+     * @param time     timestamp for the readings
+     * @param readings list the readings are added to, oldest first
+     * @return number of readings added
+     */
+    public int decodePacked(byte[] value, long time, List<Reading> readings) {
+        return 0;
+    }
+
+    /**
+     * Hand over packed samples that were decoded but held back to be forwarded in bulk
+     *
+     * @param readings list the readings are added to, oldest first
+     * @return number of readings added
+     */
+    public int flushPacked(List<Reading> readings) {
+        return 0;
+    }
+
+    /**
+     * Forget the characteristics found by a previous service discovery
+     */
+    public void clearQueues() {
+        this.characteristicsQueue = null;
+        this.characteristicsReadQueue = null;
+        this.subscriptionQueue = null;
+    }
+
+    /**
+     * @param characteristic characteristic to receive through notifications instead of polling
+     */
+    public void addSubscription(BluetoothGattCharacteristic characteristic) {
+        if (this.subscriptionQueue == null) {
+            this.subscriptionQueue = new LinkedList<>();
+        }
+        this.subscriptionQueue.add(characteristic);
+    }
+
+    /**
+     * @return next characteristic to enable notifications on, null if none left
+     */
+    public BluetoothGattCharacteristic nextSubscription() {
+        return this.subscriptionQueue == null ? null : this.subscriptionQueue.poll();
+    }
 
 }
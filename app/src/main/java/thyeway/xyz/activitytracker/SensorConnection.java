@@ -0,0 +1,111 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Connection of a tracked sensor, as seen by the ConnectionManager
+ * <p/>
+ * A sensor waits for a slot, connects, has its services set up (from the GATT cache or by
+ * discovery) and then streams or is polled. A connection that drops on its own is retried after
+ * a backoff that grows with every failed attempt; once the attempts run out the sensor is either
+ * left to a background connection that completes whenever it comes back in range, or given up
+ * on (lost) until it is tracked again.
+ */
+public class SensorConnection {
+
+    public enum State {
+        IDLE,           // not connected, and not waiting for a slot
+        WAITING,        // waiting for a connection slot
+        CONNECTING,     // holds a slot, connection requested
+        DISCOVERING,    // holds a slot, connected, services being set up
+        STREAMING,      // holds a slot, readings are being polled or notified
+        BACKOFF,        // connection dropped, waiting to try again
+        LOST;           // gave up reconnecting until tracked again
+
+        /**
+         * @return true if a connection slot is taken in this state
+         */
+        boolean holdsSlot() {
+            return this == CONNECTING || this == DISCOVERING || this == STREAMING;
+        }
+
+        /**
+         * @return true if the sensor is connected in this state
+         */
+        boolean isConnected() {
+            return this == DISCOVERING || this == STREAMING;
+        }
+    }
+
+    final String mac;
+    int priority;               // higher is connected first, and may keep its slot when slots run out
+    State state = State.IDLE;
+    boolean pinned;             // keeps its slot instead of taking turns with the other sensors
+    boolean releasing;          // its turn is over, disconnect requested
+    boolean background;         // connecting in the background, without a timeout
+    int attempts;               // failed reconnect attempts since it was last connected
+
+    ScheduledFuture<?> timer;   // end of its turn, connect timeout or end of backoff
+
+    // statistics, times in milliseconds
+    final long trackedSince;
+    long connectedSince;
+    long connectedTime;
+    long disconnectedSince;     // when the connection last dropped on its own, 0 while connected
+    long disconnectedTime;      // time spent reconnecting after drops
+    long drops;
+    long readings;
+    long turns;
+
+    SensorConnection(String mac, int priority) {
+        this.mac = mac;
+        this.priority = priority;
+        this.trackedSince = System.currentTimeMillis();
+    }
+
+    /**
+     * @return MAC of the sensor
+     */
+    public String getMac() {
+        return mac;
+    }
+
+    /**
+     * @return current state of the connection
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return time spent disconnected after the connection dropped on its own, in milliseconds
+     */
+    public long getDisconnectedTime() {
+        return disconnectedTime + (disconnectedSince > 0 ? System.currentTimeMillis() - disconnectedSince : 0);
+    }
+
+    /**
+     * @return number of times the connection dropped on its own
+     */
+    public long getDrops() {
+        return drops;
+    }
+
+    /**
+     * @return readings received per second since the sensor was tracked
+     */
+    public double getSampleRate() {
+        long elapsed = System.currentTimeMillis() - trackedSince;
+        return elapsed <= 0 ? 0 : readings * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return fraction (0 to 1) of the time since the sensor was tracked that it was connected
+     */
+    public double getConnectedShare() {
+        long now = System.currentTimeMillis();
+        long connected = connectedTime + (state.isConnected() ? now - connectedSince : 0);
+        long elapsed = now - trackedSince;
+        return elapsed <= 0 ? 0 : Math.min(1, connected / (double) elapsed);
+    }
+}
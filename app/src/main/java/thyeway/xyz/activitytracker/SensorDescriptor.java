@@ -0,0 +1,271 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Everything the relay needs to know about a type of sensor, described once
+ * <p/>
+ * The GATT service the type is recognised by, the characteristics holding the sequence number and
+ * the value and how their bytes are laid out, an optional packed characteristic carrying several
+ * samples at once, and the sensor type code and packet tag its readings are sent with. Sensors of
+ * a described type are decoded by DescriptorSensor, the lookups they need are built here once.
+ * Types are registered in SensorDescriptors.
+ */
+public final class SensorDescriptor {
+
+    /**
+     * Creates the sensors of a type, for types that need more than DescriptorSensor
+     */
+    public interface Factory {
+        Sensor create(SensorDescriptor descriptor, String device_name, String device_mac);
+    }
+
+    // fields of the single-sample characteristics, see fields
+    static final int FIELD_SEQUENCE_NUMBER = 0;
+    static final int FIELD_VALUE = 1;
+
+    final int sensor_type;
+    final String tag;
+    final UUID service_uuid;
+    final String label;         // shown in front of the device name
+    final int device_id;
+    final long poll_interval;   // milliseconds between polls, 0 to use the interval from settings
+    final int priority;         // above 0 keeps its connection when sensors take turns, see ConnectionManager
+
+    final UUID sequence_uuid;
+    final FieldLayout sequence;
+    final UUID value_uuid;
+    final FieldLayout value;
+
+    final UUID packed_uuid;     // null if the type has no packed characteristic
+    final int packed_header_length;     // 0 if every record holds its own sequence number
+    final int packed_record_length;
+    final FieldLayout packed_sequence;  // in the header if there is one, otherwise in each record
+    final FieldLayout[] packed_values;  // per record, the device id of the first plus their index
+
+    final String[] statistic_tags;          // tags of the statistics, indexed by SensorType.STATISTIC_*
+    final Set<UUID> characteristics;        // every characteristic the type uses
+    final Map<UUID, Integer> fields;        // single-sample characteristics, to FIELD_*
+    final Factory factory;
+
+    private SensorDescriptor(Builder builder) {
+        this.sensor_type = builder.sensor_type;
+        this.tag = builder.tag;
+        this.service_uuid = builder.service_uuid;
+        this.label = builder.label;
+        this.device_id = builder.device_id;
+        this.poll_interval = builder.poll_interval;
+        this.priority = builder.priority;
+        this.sequence_uuid = builder.sequence_uuid;
+        this.sequence = builder.sequence;
+        this.value_uuid = builder.value_uuid;
+        this.value = builder.value;
+        this.packed_uuid = builder.packed_uuid;
+        this.packed_header_length = builder.packed_header_length;
+        this.packed_record_length = builder.packed_record_length;
+        this.packed_sequence = builder.packed_sequence;
+        this.packed_values = builder.packed_values;
+        this.factory = builder.factory;
+
+        this.statistic_tags = SensorType.statisticTags(tag);
+
+        HashMap<UUID, Integer> fields = new HashMap<>();
+        if (sequence_uuid != null) {
+            fields.put(sequence_uuid, FIELD_SEQUENCE_NUMBER);
+        }
+        if (value_uuid != null) {
+            fields.put(value_uuid, FIELD_VALUE);
+        }
+        this.fields = Collections.unmodifiableMap(fields);
+
+        HashSet<UUID> characteristics = new HashSet<>(fields.keySet());
+        characteristics.addAll(builder.extra);
+        if (packed_uuid != null) {
+            characteristics.add(packed_uuid);
+        }
+        this.characteristics = Collections.unmodifiableSet(characteristics);
+    }
+
+    /**
+     * @param device_name name of the device, can be null
+     * @param device_mac  MAC of the device
+     * @return a new sensor of this type
+     */
+    public Sensor create(String device_name, String device_mac) {
+        if (factory != null) {
+            return factory.create(this, device_name, device_mac);
+        }
+        return new DescriptorSensor(this, device_name, device_mac);
+    }
+
+    public int getSensorType() {
+        return sensor_type;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public UUID getServiceUuid() {
+        return service_uuid;
+    }
+
+    /**
+     * Describes a sensor type, every part but the type, tag and service is optional
+     */
+    public static class Builder {
+        private final int sensor_type;
+        private final String tag;
+        private final UUID service_uuid;
+        private String label;
+        private int device_id;
+        private long poll_interval;
+        private int priority;
+        private UUID sequence_uuid;
+        private FieldLayout sequence;
+        private UUID value_uuid;
+        private FieldLayout value;
+        private UUID packed_uuid;
+        private int packed_header_length;
+        private int packed_record_length;
+        private FieldLayout packed_sequence;
+        private FieldLayout[] packed_values;
+        private final HashSet<UUID> extra = new HashSet<>();
+        private Factory factory;
+
+        /**
+         * @param sensor_type  sensor type code used by the binary wire format
+         * @param tag          packet tag used by the text wire format
+         * @param service_uuid GATT service the sensors are recognised by
+         */
+        public Builder(int sensor_type, String tag, UUID service_uuid) {
+            this.sensor_type = sensor_type;
+            this.tag = tag;
+            this.service_uuid = service_uuid;
+            this.label = tag.toUpperCase(Locale.ROOT);
+        }
+
+        /**
+         * @param label shown in front of the device name, the upper case tag by default
+         */
+        public Builder label(String label) {
+            this.label = label;
+            return this;
+        }
+
+        /**
+         * @param device_id device id sent with the readings
+         */
+        public Builder deviceId(int device_id) {
+            this.device_id = device_id;
+            return this;
+        }
+
+        /**
+         * @param poll_interval milliseconds between polls of the sensors, when they cannot notify,
+         *                      0 to use the interval from settings
+         */
+        public Builder pollInterval(long poll_interval) {
+            this.poll_interval = poll_interval;
+            return this;
+        }
+
+        /**
+         * @param priority connection priority of the sensors, above 0 to keep their connection
+         *                 when sensors have to take turns, 0 by default
+         */
+        public Builder priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * @param uuid   characteristic holding the sequence number
+         * @param layout where the sequence number sits in its value
+         */
+        public Builder sequence(UUID uuid, FieldLayout layout) {
+            this.sequence_uuid = uuid;
+            this.sequence = layout;
+            return this;
+        }
+
+        /**
+         * @param uuid   characteristic holding the value
+         * @param layout where the value sits in its value, and how it is scaled
+         */
+        public Builder value(UUID uuid, FieldLayout layout) {
+            this.value_uuid = uuid;
+            this.value = layout;
+            return this;
+        }
+
+        /**
+         * @param uuid          characteristic carrying several samples per read or notification
+         * @param record_length bytes per sample
+         * @param sequence      where the sequence number sits in a sample
+         * @param value         where the value sits in a sample, and how it is scaled
+         */
+        public Builder packed(UUID uuid, int record_length, FieldLayout sequence, FieldLayout value) {
+            return packedFrames(uuid, 0, sequence, record_length, value);
+        }
+
+        /**
+         * @param uuid          characteristic carrying frames of several samples
+         * @param header_length bytes before the first sample
+         * @param sequence      where the sequence number of the first sample sits in the header,
+         *                      the following samples count up from it
+         * @param record_length bytes per sample
+         * @param values        where each value sits in a sample, and how it is scaled, e.g. one
+         *                      per axis
+         */
+        public Builder packedFrames(UUID uuid, int header_length, FieldLayout sequence, int record_length, FieldLayout... values) {
+            this.packed_uuid = uuid;
+            this.packed_header_length = header_length;
+            this.packed_record_length = record_length;
+            this.packed_sequence = sequence;
+            this.packed_values = values.clone();
+            return this;
+        }
+
+        /**
+         * @param uuid further characteristic the sensors use, decoded by their own Sensor class
+         */
+        public Builder characteristic(UUID uuid) {
+            this.extra.add(uuid);
+            return this;
+        }
+
+        /**
+         * @param factory creates the sensors, for types that need their own Sensor class
+         */
+        public Builder factory(Factory factory) {
+            this.factory = factory;
+            return this;
+        }
+
+        public SensorDescriptor build() {
+            if (sensor_type <= SensorType.UNKNOWN || sensor_type > SensorType.MAX_TYPE) {
+                throw new IllegalArgumentException("Sensor type out of range: " + sensor_type);
+            }
+            if (packed_uuid != null) {
+                byte[] record = new byte[Math.max(0, packed_record_length)];
+                boolean fits = packed_record_length > 0 && packed_header_length >= 0 && packed_values.length > 0
+                        && packed_sequence.fits(packed_header_length > 0 ? new byte[packed_header_length] : record, 0);
+                for (FieldLayout value : packed_values) {
+                    fits &= value.fits(record, 0);
+                }
+                if (!fits) {
+                    throw new IllegalArgumentException("Packed fields do not fit a " + packed_header_length
+                            + " byte header and " + packed_record_length + " byte records");
+                }
+            }
+            return new SensorDescriptor(this);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The supported sensor types, by service UUID, sensor type code and packet tag
+ * <p/>
+ * A new type of sensor is supported by registering its SensorDescriptor here, nothing else in
+ * the relay needs to change. Lookups are single hash map accesses.
+ */
+public final class SensorDescriptors {
+
+    private static final ConcurrentHashMap<UUID, SensorDescriptor> BY_SERVICE = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, SensorDescriptor> BY_TYPE = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, SensorDescriptor> BY_TAG = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<UUID> SERVICES = new CopyOnWriteArrayList<>();
+
+    static {
+        register(LuxSensor.DESCRIPTOR);
+        register(ImuSensor.DESCRIPTOR);
+    }
+
+    private SensorDescriptors() {
+    }
+
+    /**
+     * @param descriptor sensor type to support, its code and tag are added to SensorType
+     * @throws IllegalArgumentException if its service, type code or tag is already taken
+     */
+    public static synchronized void register(SensorDescriptor descriptor) {
+        if (BY_SERVICE.containsKey(descriptor.service_uuid) || BY_TYPE.containsKey(descriptor.sensor_type)
+                || BY_TAG.containsKey(descriptor.tag)) {
+            throw new IllegalArgumentException("Sensor type already registered: " + descriptor.tag);
+        }
+        SensorType.register(descriptor.sensor_type, descriptor.tag);
+        BY_SERVICE.put(descriptor.service_uuid, descriptor);
+        BY_TYPE.put(descriptor.sensor_type, descriptor);
+        BY_TAG.put(descriptor.tag, descriptor);
+        SERVICES.add(descriptor.service_uuid);
+    }
+
+    /**
+     * @param service GATT service UUID
+     * @return the sensor type recognised by that service, or null
+     */
+    public static SensorDescriptor get(UUID service) {
+        return BY_SERVICE.get(service);
+    }
+
+    /**
+     * @param type sensor type code
+     * @return the sensor type with that code, or null
+     */
+    public static SensorDescriptor forType(int type) {
+        return BY_TYPE.get(type);
+    }
+
+    /**
+     * @param tag packet tag
+     * @return the sensor type with that tag, or null
+     */
+    public static SensorDescriptor forTag(String tag) {
+        return BY_TAG.get(tag);
+    }
+
+    /**
+     * @return service UUIDs of the supported sensor types
+     */
+    public static List<UUID> services() {
+        return SERVICES;
+    }
+
+    /**
+     * @param service     GATT service UUID found on the device
+     * @param device_name name of the device, can be null
+     * @param device_mac  MAC of the device
+     * @return a sensor for the device, or null if no supported type has that service
+     */
+    public static Sensor createSensor(UUID service, String device_name, String device_mac) {
+        SensorDescriptor descriptor = BY_SERVICE.get(service);
+        return descriptor == null ? null : descriptor.create(device_name, device_mac);
+    }
+}
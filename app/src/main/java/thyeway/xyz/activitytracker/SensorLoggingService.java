@@ -7,35 +7,32 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
-import android.content.ContentValues;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteCursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.os.AsyncTask;
+import android.net.ConnectivityManager;
 import android.os.Binder;
-import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.NotificationCompat;
 import android.util.Log;
 
-import java.io.DataOutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-import static thyeway.xyz.activitytracker.DatabaseContract.DatabaseEntry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Logging service
@@ -56,21 +53,70 @@ public class SensorLoggingService extends Service {
 
     private ArrayList<Sensor> mSensors;
 
+    // sensors known to the app, shared with the scanner, the tracked ones are flagged
+    private final SensorRegistry mRegistry = SensorRegistry.getInstance();
+
     private IBinder mBinder;
 
-    private DatabaseHelper dbHelper;
+    // readings waiting for the connection to the access point to restore
+    private PacketStore mStore;
+
+    // connection to the access point (Pi), shared by the live relay and the database export
+    private RelayConnection mRelay;
+
+    // batches packets from all sensors before they go out on the relay connection
+    private RelayBatcher mBatcher;
+
+    // bounded queue between the GATT callbacks and the relay worker thread
+    private RelayQueue mRelayQueue;
+
+    // schedules attempts to restore the connection, with backoff
+    private ReconnectScheduler mReconnect;
+
+    // polls the tracked sensors, one job per sensor on a single shared thread
+    private SensorPoller mPoller;
+
+    // how frequent to read data from sensor(s) that do not set their own interval, in milliseconds
+    private long mPollInterval;
+
+    // receive characteristics that support it through notifications instead of polling them
+    private boolean mStreaming;
+
+    // MTU asked for on every connection, and whether streaming sensors get a fast connection
+    private int mMtu;
+    private boolean mHighPriority;
 
-    private boolean inRange;
-    private Runnable verify_connection;
+    // GATT layout of every sensor discovered so far, lets reconnects skip service discovery
+    private GattCache mGattCache;
 
-    // how frequent to read data from sensor(s), in milliseconds
-    private final int mDelay = 5000;
+    // connection of each tracked sensor, by MAC, kept while disconnected so a reconnect reuses
+    // the services it already discovered
+    private final HashMap<String, BluetoothGatt> mGatts = new HashMap<>();
+
+    // shares the connection slots among the tracked sensors
+    private ConnectionManager mConnections;
+
+    // GATT operations of each connected device, by MAC, with a timer shared for their timeouts
+    private final HashMap<String, GattOperationQueue> mGattQueues = new HashMap<>();
+    private ScheduledExecutorService mGattTimer;
+    private long mGattTimeout;
+    private int mGattRetries;
+
+    private volatile boolean inRange;
 
     private String HOST;      // TODO: automatically detect access point
     private int PORT;
-    private final int VERIFY_CONNECTION_INTERVAL = 1000;
     private static int ONGOING_NOTIFICATION_ID = 10;
 
+    // shortest time between two status updates about relayed readings, in milliseconds
+    private static final long STATUS_INTERVAL = 1000;
+
+    // MTU every connection starts with
+    private static final int DEFAULT_MTU = 23;
+
+    // how long a sensor may take to connect before the attempt is given up on, in milliseconds
+    private static final long SENSOR_CONNECT_TIMEOUT = 10000;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -111,8 +157,51 @@ public class SensorLoggingService extends Service {
             this.stopSelf();
         }
 
-        dbHelper = new DatabaseHelper(this);
+        mStore = new PacketStore(this);
+        mPoller = new SensorPoller(Integer.parseInt(getResources().getString(R.string.default_max_reads)));
+        mGattTimer = Executors.newSingleThreadScheduledExecutor();
+        mGattCache = GattCache.getInstance(this);
+        mConnections = new ConnectionManager(mConnector, mGattTimer,
+                Integer.parseInt(getResources().getString(R.string.default_max_connections)),
+                Long.parseLong(getResources().getString(R.string.default_connection_turn)), SENSOR_CONNECT_TIMEOUT);
         inRange = true;
+
+        registerReceiver(mNetworkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        unregisterReceiver(mNetworkReceiver);
+        mPoller.shutdown();
+        mConnections.shutdown();
+        synchronized (mGattQueues) {
+            for (GattOperationQueue queue : mGattQueues.values()) {
+                queue.close();
+            }
+            mGattQueues.clear();
+        }
+        synchronized (mGatts) {
+            for (BluetoothGatt gatt : mGatts.values()) {
+                gatt.disconnect();
+                gatt.close();
+            }
+            mGatts.clear();
+        }
+        mGattTimer.shutdownNow();
+        if (mReconnect != null) {
+            mReconnect.shutdown();
+        }
+        if (mRelayQueue != null) {
+            mRelayQueue.shutdown();
+        }
+        if (mBatcher != null) {
+            mBatcher.shutdown();
+        }
+        if (mRelay != null) {
+            mRelay.shutdown();
+        }
+        mStore.close();
     }
 
     @Override
@@ -158,14 +247,100 @@ public class SensorLoggingService extends Service {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         HOST = preferences.getString(getResources().getString(R.string.preference_host), HOST);
         PORT = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_port), getResources().getString(R.string.default_port)));
+        int connectTimeout = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_connect_timeout), getResources().getString(R.string.default_connect_timeout)));
+        int writeTimeout = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_write_timeout), getResources().getString(R.string.default_write_timeout)));
+
+        int batchBytes = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_batch_bytes), getResources().getString(R.string.default_batch_bytes)));
+        int batchRecords = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_batch_records), getResources().getString(R.string.default_batch_records)));
+        long batchLinger = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_batch_linger), getResources().getString(R.string.default_batch_linger)));
+        String wireFormat = preferences.getString(getResources().getString(R.string.preference_wire_format), getResources().getString(R.string.default_wire_format));
+        PacketCodec codec = wireFormat.equals(getResources().getString(R.string.wire_format_binary)) ? new BinaryPacketCodec() : new TextPacketCodec();
+        int queueCapacity = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_queue_capacity), getResources().getString(R.string.default_queue_capacity)));
+        RelayQueue.OverflowPolicy overflowPolicy = RelayQueue.OverflowPolicy.valueOf(preferences.getString(getResources().getString(R.string.preference_overflow_policy), getResources().getString(R.string.default_overflow_policy)));
+        long reconnectBase = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_reconnect_base), getResources().getString(R.string.default_reconnect_base)));
+        long reconnectMax = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_reconnect_max), getResources().getString(R.string.default_reconnect_max)));
+        float reconnectJitter = Float.parseFloat(preferences.getString(getResources().getString(R.string.preference_reconnect_jitter), getResources().getString(R.string.default_reconnect_jitter)));
+        boolean acknowledged = preferences.getBoolean(getResources().getString(R.string.preference_acknowledged), false);
+        int sendWindow = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_send_window), getResources().getString(R.string.default_send_window)));
+        boolean compressBacklog = preferences.getBoolean(getResources().getString(R.string.preference_compress_backlog), true);
+        mStreaming = preferences.getBoolean(getResources().getString(R.string.preference_streaming), true);
+        mMtu = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_mtu), getResources().getString(R.string.default_mtu)));
+        mHighPriority = preferences.getBoolean(getResources().getString(R.string.preference_high_priority), true);
+        mPollInterval = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_poll_interval), getResources().getString(R.string.default_poll_interval)));
+        int maxReads = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_max_reads), getResources().getString(R.string.default_max_reads)));
+        mPoller.setMaxInFlight(maxReads);
+        mGattTimeout = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_gatt_timeout), getResources().getString(R.string.default_gatt_timeout)));
+        mGattRetries = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_gatt_retries), getResources().getString(R.string.default_gatt_retries)));
+        int maxConnections = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_max_connections), getResources().getString(R.string.default_max_connections)));
+        long connectionTurn = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_connection_turn), getResources().getString(R.string.default_connection_turn)));
+        mConnections.configure(maxConnections, connectionTurn, SENSOR_CONNECT_TIMEOUT);
+        int sensorReconnectAttempts = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_sensor_reconnect_attempts), getResources().getString(R.string.default_sensor_reconnect_attempts)));
+        boolean backgroundReconnect = preferences.getBoolean(getResources().getString(R.string.preference_background_reconnect), true);
+        long sensorReconnectBase = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_sensor_reconnect_base), getResources().getString(R.string.default_sensor_reconnect_base)));
+        long sensorReconnectMax = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_sensor_reconnect_max), getResources().getString(R.string.default_sensor_reconnect_max)));
+        String aggregation = preferences.getString(getResources().getString(R.string.preference_aggregation), getResources().getString(R.string.default_aggregation));
+        int aggregationWindow = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_aggregation_window), getResources().getString(R.string.default_aggregation_window)));
+        int aggregationStep = Integer.parseInt(preferences.getString(getResources().getString(R.string.preference_aggregation_step), getResources().getString(R.string.default_aggregation_step)));
+        boolean aggregate = !aggregation.equals(getResources().getString(R.string.aggregation_off));
+        boolean keepRaw = aggregation.equals(getResources().getString(R.string.aggregation_alongside));
+        float deadBand = Float.parseFloat(preferences.getString(getResources().getString(R.string.preference_dead_band), getResources().getString(R.string.default_dead_band)));
+        boolean deadBandRelative = preferences.getBoolean(getResources().getString(R.string.preference_dead_band_relative), false);
+        long heartbeat = Long.parseLong(preferences.getString(getResources().getString(R.string.preference_heartbeat), getResources().getString(R.string.default_heartbeat)));
+        mConnections.setReconnect(sensorReconnectAttempts, backgroundReconnect);
+        mConnections.setBackoff(sensorReconnectBase, sensorReconnectMax, reconnectJitter);
+
+        if (mRelay == null) {
+            mRelay = new RelayConnection(HOST, PORT, connectTimeout, writeTimeout, codec);
+            mRelay.setAcknowledged(acknowledged, sendWindow);
+            mRelay.setCompression(compressBacklog);
+            mBatcher = new RelayBatcher(mRelay, mFlushListener, batchBytes, batchRecords, batchLinger);
+            // the queue capacity is fixed once the relay worker is running
+            mRelayQueue = new RelayQueue(queueCapacity, overflowPolicy, mQueueListener);
+            mReconnect = new ReconnectScheduler(mReconnectListener, reconnectBase, reconnectMax, reconnectJitter);
+        } else {
+            mReconnect.configure(reconnectBase, reconnectMax, reconnectJitter);
+            mRelayQueue.setOverflowPolicy(overflowPolicy);
+            // send what is buffered in the old wire format before switching
+            mBatcher.flush();
+            mRelay.configure(HOST, PORT, connectTimeout, writeTimeout, codec);
+            mRelay.setAcknowledged(acknowledged, sendWindow);
+            mRelay.setCompression(compressBacklog);
+            mBatcher.configure(batchBytes, batchRecords, batchLinger);
+        }
 
-        mSensors = new ArrayList<>(sensors);
+        // stop polling sensors that are no longer tracked
+        if (mSensors != null) {
+            for (Sensor sensor : mSensors) {
+                sensor.tracked = false;
+            }
+        }
+        mSensors = new ArrayList<>(sensors.size());
+        for (Sensor sensor : sensors) {
+            Sensor known = mRegistry.putIfAbsent(sensor);
+            known = known == null ? sensor : known;
+            known.tracked = true;
+            known.filter = deadBand > 0 ? new DeadBandFilter(deadBand, deadBandRelative, heartbeat) : null;
+            // a new stage starts with empty windows
+            WindowAggregator previous = known.aggregator;
+            known.aggregator = !aggregate ? null : new WindowAggregator(aggregationWindow,
+                    aggregationStep > 0 ? aggregationStep : aggregationWindow, keepRaw, mAggregateSink);
+            if (previous != null) {
+                previous.flush();
+            }
+            mSensors.add(known);
+        }
+        for (Sensor sensor : mRegistry.sensors()) {
+            if (!sensor.tracked) {
+                mPoller.cancel(sensor.device_mac);
+                mConnections.untrack(sensor.device_mac);
+                closeGatt(sensor.device_mac);
+            }
+        }
 
+        // connections are opened as slots allow, through mConnector
         for (Sensor sensor : mSensors) {
             Log.i(TAG, "Tracking : " + sensor.device_mac);
-            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(sensor.device_mac);
-//                mBluetoothGatt = device.connectGatt(getApplicationContext(), false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
-            device.connectGatt(getApplicationContext(), false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+            mConnections.track(sensor.device_mac, sensor.priority);
         }
 
         // TODO: Feature/handler to stop tracking
@@ -174,22 +349,54 @@ public class SensorLoggingService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
         private Sensor getSensor(String device_mac) {
-            for (Sensor sensor : mSensors) {
-                if (sensor.device_mac.equalsIgnoreCase(device_mac)) {
-                    return sensor;
-                }
-            }
-            return null;
+            Sensor sensor = mRegistry.get(device_mac);
+            return sensor != null && sensor.tracked ? sensor : null;
         }
 
         @Override
         public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
+            String mac = gatt.getDevice().getAddress();
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                setStatus(Status.STATUS_OK, gatt.getDevice().getAddress() + " connected");
+                if (!mConnections.onConnected(mac)) {
+                    // its turn ended before it got connected
+                    return;
+                }
+                setStatus(Status.STATUS_OK, mac + " connected");
+                openQueue(gatt);
+
+                // a reconnect whose services still match the cached layout goes straight to work
+                Sensor sensor = getSensor(mac);
+                GattLayout layout = mGattCache.get(mac);
+                if (sensor != null && layout != null) {
+                    BluetoothGattService gattService = gatt.getService(sensor.service_uuid);
+                    if (layout.matches(gattService)) {
+                        Log.i(TAG, "Using cached layout: " + mac);
+                        setUp(gatt, getQueue(mac), sensor, gattService);
+                        return;
+                    }
+                }
                 gatt.discoverServices();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "Disconnect: " + gatt.getDevice().getAddress());
-                gatt.close();
+                Log.i(TAG, "Disconnect: " + mac);
+                mPoller.cancel(mac);
+                closeQueue(mac);
+                Sensor sensor = getSensor(mac);
+                if (sensor != null) {
+                    // samples held back for a bulk forward are not kept until the next connection
+                    synchronized (sensor.packed_readings) {
+                        if (sensor.flushPacked(sensor.packed_readings) > 0) {
+                            relayAll(sensor, sensor.packed_readings);
+                        }
+                        sensor.packed_readings.clear();
+                    }
+                    WindowAggregator aggregator = sensor.aggregator;
+                    if (aggregator != null) {
+                        aggregator.flush();
+                    }
+                } else {
+                    closeGatt(mac);
+                }
+                mConnections.onDisconnected(mac);
             }
         }
 
@@ -197,247 +404,706 @@ public class SensorLoggingService extends Service {
         public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
             Log.i(TAG, "onServiceDiscovered");
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Sensor sensor = getSensor(gatt.getDevice().getAddress());
-
-                List<BluetoothGattService> gattServices = gatt.getServices();
-                for (BluetoothGattService gattService : gattServices) {
-                    if (gattService.getUuid().toString().equalsIgnoreCase(UUIDs.LUX_SERVICE)) {
-
-                        List<BluetoothGattCharacteristic> characteristics = gattService.getCharacteristics();
-                        for (BluetoothGattCharacteristic characteristic : characteristics) {
-                            for (String UUID : sensor.gatt_characteristics) {
-                                if (characteristic.getUuid().toString().equalsIgnoreCase(UUID)) {
-                                    sensor.addToQueue(characteristic);
-                                    Log.i(TAG, "Add to queue: " + characteristic.getUuid().toString());
-                                }
-                            }
+                String mac = gatt.getDevice().getAddress();
+                Sensor sensor = getSensor(mac);
+                GattOperationQueue queue = getQueue(mac);
+                if (sensor == null || queue == null) {
+                    Log.i(TAG, "Not tracked: " + mac);
+                    return;
+                }
+
+                BluetoothGattService gattService = gatt.getService(sensor.service_uuid);
+                if (gattService != null) {
+                    mGattCache.put(mac, GattLayout.of(gattService, sensor.gatt_characteristics, gatt.getDevice().getName()));
+                } else {
+                    mGattCache.remove(mac);
+                }
+                setUp(gatt, queue, sensor, gattService);
+            }
+        }
+
+        /**
+         * Sort the sensor's characteristics into subscriptions and polled ones, then start on them
+         *
+         * @param gattService the sensor's service, null if the device does not have it
+         */
+        private void setUp(BluetoothGatt gatt, GattOperationQueue queue, Sensor sensor, BluetoothGattService gattService) {
+            final String mac = gatt.getDevice().getAddress();
+            // stop polling while the characteristics are sorted out
+            mPoller.cancel(mac);
+            sensor.clearQueues();
+            sensor.emptyData();
+
+            // a larger MTU lets a packed characteristic carry more samples per read or notification,
+            // queued ahead of the subscriptions and reads
+            if (mMtu > DEFAULT_MTU) {
+                queue.requestMtu(mMtu, new GattOperationQueue.Callback() {
+                    @Override
+                    public void onComplete(GattOperationQueue.Operation operation, int status) {
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            Log.i(TAG, "MTU request failed (" + status + "): " + mac);
+                        }
+                    }
+                });
+            }
+
+            if (gattService != null) {
+                // the packed characteristic, if the sensor has it, replaces the individual ones
+                boolean packed = sensor.packed_uuid != null && gattService.getCharacteristic(sensor.packed_uuid) != null;
+                for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
+                    UUID uuid = characteristic.getUuid();
+                    if (sensor.gatt_characteristics.contains(uuid) && packed == uuid.equals(sensor.packed_uuid)) {
+                        if (mStreaming && canSubscribe(characteristic)) {
+                            sensor.addSubscription(characteristic);
+                            Log.i(TAG, "Subscribe: " + characteristic.getUuid());
+                        } else {
+                            sensor.addToQueue(characteristic);
+                            Log.i(TAG, "Add to queue: " + characteristic.getUuid());
                         }
                     }
                 }
+            }
+
+            subscribe(gatt, queue, sensor);
+        }
+
+        private boolean canSubscribe(BluetoothGattCharacteristic characteristic) {
+            int push = BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE;
+            return (characteristic.getProperties() & push) != 0
+                    && characteristic.getDescriptor(UUIDs.CLIENT_CHARACTERISTIC_CONFIG) != null;
+        }
+
+        /**
+         * Enable notifications on the sensor's subscriptions, the descriptor writes go through the
+         * connection's operation queue, then start polling whatever is left to poll
+         */
+        private void subscribe(final BluetoothGatt gatt, final GattOperationQueue queue, final Sensor sensor) {
+            ArrayList<BluetoothGattCharacteristic> subscriptions = new ArrayList<>();
+            BluetoothGattCharacteristic next;
+            while ((next = sensor.nextSubscription()) != null) {
+                subscriptions.add(next);
+            }
+            if (subscriptions.isEmpty()) {
+                startPolling(gatt, queue, sensor);
+                return;
+            }
 
-                Runnable discoverService = new Runnable() {
+            final AtomicInteger remaining = new AtomicInteger(subscriptions.size());
+            for (final BluetoothGattCharacteristic characteristic : subscriptions) {
+                GattOperationQueue.Callback subscribed = new GattOperationQueue.Callback() {
                     @Override
-                    public void run() {
-                        Sensor sensor = getSensor(gatt.getDevice().getAddress());
-                        if (sensor.readReady()) {
-                            sensor.prepareReadQueue();
-                            gatt.readCharacteristic(sensor.getQueueNext());
+                    public void onComplete(GattOperationQueue.Operation operation, int status) {
+                        if (status == GattOperationQueue.STATUS_CANCELLED) {
+                            // disconnected, discovery starts over on the next connection
+                            return;
+                        }
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            fallBackToPolling(gatt, sensor, characteristic);
+                        } else if (mHighPriority) {
+                            // notifications arrive at the pace of the connection interval, shorten it
+                            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            startPolling(gatt, queue, sensor);
                         }
                     }
                 };
 
-                ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
-                executorService.scheduleAtFixedRate(discoverService, 0, 1, TimeUnit.SECONDS);
+                if (!gatt.setCharacteristicNotification(characteristic, true)) {
+                    fallBackToPolling(gatt, sensor, characteristic);
+                    if (remaining.decrementAndGet() == 0) {
+                        startPolling(gatt, queue, sensor);
+                    }
+                    continue;
+                }
+                boolean notify = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
+                queue.writeDescriptor(characteristic.getDescriptor(UUIDs.CLIENT_CHARACTERISTIC_CONFIG),
+                        notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE,
+                        subscribed);
             }
         }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Sensor sensor = getSensor(gatt.getDevice().getAddress());
-                sensor.updateData(characteristic.getUuid().toString(), characteristic.getValue());
+        private void fallBackToPolling(BluetoothGatt gatt, Sensor sensor, BluetoothGattCharacteristic characteristic) {
+            Log.i(TAG, "Cannot subscribe, polling instead: " + characteristic.getUuid());
+            gatt.setCharacteristicNotification(characteristic, false);
+            sensor.addToQueue(characteristic);
+        }
 
-                BluetoothGattCharacteristic next = sensor.getQueueNext();
-                if (next != null) {
-                    gatt.readCharacteristic(next);
-                } else {
-                    if (Integer.parseInt(sensor.sequence_number) != 0) {
-                        new RelayData().execute(sensor.createPacket(Long.toString(System.currentTimeMillis() / 1000)));
+        private void startPolling(final BluetoothGatt gatt, final GattOperationQueue queue, final Sensor sensor) {
+            mConnections.onReady(gatt.getDevice().getAddress());
+            if (!sensor.readReady()) {
+                Log.i(TAG, "Streaming only: " + gatt.getDevice().getAddress());
+                return;
+            }
+            final String mac = gatt.getDevice().getAddress();
+
+            // reads the sensor's characteristics one after the other, through the operation queue
+            final GattOperationQueue.Callback readNext = new GattOperationQueue.Callback() {
+                @Override
+                public void onComplete(GattOperationQueue.Operation operation, int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        BluetoothGattCharacteristic characteristic = operation.getCharacteristic();
+                        if (!relayPacked(sensor, characteristic)) {
+                            sensor.updateData(characteristic.getUuid(), characteristic.getValue());
+                        }
+                        BluetoothGattCharacteristic next = sensor.getQueueNext();
+                        if (next != null) {
+                            queue.read(next, this);
+                            return;
+                        }
+                        relayIfComplete(sensor);
                     } else {
-                        setStatus(Status.STATUS_OK, "ESP8266 Thing working...");
-                        Log.i(TAG, "Dropping packet");
+                        // give up on this cycle, the next poll starts a fresh one
+                        Log.i(TAG, "Read failed (" + status + "): " + mac);
+                        sensor.emptyData();
                     }
-                    sensor.emptyData();
+                    mPoller.readFinished(mac);
                 }
+            };
+
+            SensorPoller.Target readCycle = new SensorPoller.Target() {
+                @Override
+                public boolean startRead() {
+                    sensor.prepareReadQueue();
+                    BluetoothGattCharacteristic first = sensor.getQueueNext();
+                    if (first == null) {
+                        return false;
+                    }
+                    queue.read(first, readNext);
+                    return true;
+                }
+            };
+
+            // rediscovery replaces the sensor's poll job instead of adding another one
+            long interval = sensor.poll_interval > 0 ? sensor.poll_interval : mPollInterval;
+            mPoller.start(mac, interval, readCycle);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            Sensor sensor = getSensor(gatt.getDevice().getAddress());
+            if (sensor == null) {
+                return;
+            }
+            if (!relayPacked(sensor, characteristic)) {
+                sensor.updateData(characteristic.getUuid(), characteristic.getValue());
+                relayIfComplete(sensor);
+            }
+        }
+
+        // results of queued operations go back to the connection's queue
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattOperationQueue queue = getQueue(gatt.getDevice().getAddress());
+            if (queue != null) {
+                queue.onCharacteristicRead(characteristic, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattOperationQueue queue = getQueue(gatt.getDevice().getAddress());
+            if (queue != null) {
+                queue.onCharacteristicWrite(characteristic, status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            GattOperationQueue queue = getQueue(gatt.getDevice().getAddress());
+            if (queue != null) {
+                queue.onDescriptorWrite(descriptor, status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.i(TAG, "MTU " + mtu + ": " + gatt.getDevice().getAddress());
+            GattOperationQueue queue = getQueue(gatt.getDevice().getAddress());
+            if (queue != null) {
+                queue.onMtuChanged(status);
             }
         }
     };
 
     /**
-     * Spawn a process to check if the connection has been restored
+     * Opens and closes sensor connections for mConnections, the connection of a tracked sensor is
+     * kept between turns so a reconnect reuses the services it already discovered
      */
-    private void verify_connection() {
-        final Handler handler = new Handler();
+    private final ConnectionManager.Connector mConnector = new ConnectionManager.Connector() {
+        @Override
+        public void connect(String mac, boolean background) {
+            synchronized (mGatts) {
+                BluetoothGatt gatt = mGatts.get(mac);
+                if (gatt != null && background) {
+                    // Android reconnects an existing connection in the background, keeping its services
+                    gatt.connect();
+                    return;
+                }
+                if (gatt != null) {
+                    // gatt.connect() would wait in the background too, slower than the connect timeout
+                    // allows, a direct connect needs a new connection, its layout comes from mGattCache
+                    gatt.close();
+                }
+                BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mac);
+                mGatts.put(mac, device.connectGatt(getApplicationContext(), background, mGattCallback, BluetoothDevice.TRANSPORT_LE));
+            }
+        }
 
-        verify_connection = new Runnable() {
-            @Override
-            public void run() {
-                VerifyConnection verify = new VerifyConnection(new TaskCallback() {
-                    @Override
-                    public void taskStatus(boolean status) {
-                        if (status == false) {
-                            // connection is still down, try again within a specified interval
-                            handler.postDelayed(verify_connection, VERIFY_CONNECTION_INTERVAL);
-                        } else {
-                            // connection has been restored, spawn process to send all locally
-                            // stored data back to the access point (Pi)
-                            new ExportLocalDatabase().execute();
-                        }
-                    }
-                });
-                verify.execute();
+        @Override
+        public void disconnect(String mac) {
+            BluetoothGatt gatt;
+            synchronized (mGatts) {
+                gatt = mGatts.get(mac);
+            }
+            if (gatt != null) {
+                gatt.disconnect();
             }
-        };
+        }
+    };
 
-        handler.postDelayed(verify_connection, VERIFY_CONNECTION_INTERVAL);
+    /**
+     * Start a fresh operation queue for a connection, cancelling whatever the previous one held
+     *
+     * @param gatt newly connected device
+     */
+    private void openQueue(BluetoothGatt gatt) {
+        GattOperationQueue previous;
+        synchronized (mGattQueues) {
+            previous = mGattQueues.put(gatt.getDevice().getAddress(),
+                    new GattOperationQueue(gatt, mGattTimer, mGattTimeout, mGattRetries));
+        }
+        if (previous != null) {
+            previous.close();
+        }
     }
 
     /**
-     * Process to relay data to an access point (Pi)
+     * @param mac MAC of the device that disconnected
      */
-    private class RelayData extends AsyncTask<String, Void, Void> {
+    private void closeQueue(String mac) {
+        GattOperationQueue queue;
+        synchronized (mGattQueues) {
+            queue = mGattQueues.remove(mac);
+        }
+        if (queue != null) {
+            queue.close();
+        }
+    }
 
-        // detect state change (connection dropped)
-        private boolean stateChange = false;
+    /**
+     * Disconnect and release the connection of a sensor that is no longer tracked
+     *
+     * @param mac MAC of the sensor
+     */
+    private void closeGatt(String mac) {
+        BluetoothGatt gatt;
+        synchronized (mGatts) {
+            gatt = mGatts.remove(mac);
+        }
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+        }
+    }
 
-        /**
-         * store the sensor data locally in the database
-         *
-         * @param packet packet to store in database
-         */
-        private void storeInDatabase(String packet) {
-            try {
-                SQLiteDatabase db = dbHelper.getWritableDatabase();
-                ContentValues values = new ContentValues();
+    private GattOperationQueue getQueue(String mac) {
+        synchronized (mGattQueues) {
+            return mGattQueues.get(mac);
+        }
+    }
 
-                Log.i(TAG, "INTO DATABASE: " + packet);
-                values.put(DatabaseEntry.PACKET_DATA, packet);
+    /**
+     * Relay a reading once all of its characteristics have a value, whether polled or notified
+     *
+     * @param sensor sensor that received a value
+     */
+    private void relayIfComplete(Sensor sensor) {
+        if (!sensor.isComplete()) {
+            return;
+        }
+        if (sensor.sequence_number == 0) {
+            setStatus(Status.STATUS_OK, "ESP8266 Thing working...");
+            Log.i(TAG, "Dropping packet");
+        } else if (sensor.sequences.accept(sensor.device_id, sensor.sequence_number)) {
+            mConnections.onReading(sensor.device_mac);
+            // suppressed readings are never created
+            DeadBandFilter filter = sensor.filter;
+            long now = System.currentTimeMillis();
+            if (filter == null || filter.accept(sensor.device_id, sensor.sensor_value, now)) {
+                relay(sensor, sensor.createReading(now / 1000));
+            }
+        }
+        sensor.emptyData();
+    }
 
-                db.insertWithOnConflict(DatabaseEntry.TABLE_PACKETS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-                db.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * Relay every sample of a packed characteristic value
+     *
+     * @param sensor         sensor the value came from
+     * @param characteristic characteristic read or notified
+     * @return false if the characteristic is not the sensor's packed one
+     */
+    private boolean relayPacked(Sensor sensor, BluetoothGattCharacteristic characteristic) {
+        if (sensor.packed_uuid == null || !sensor.packed_uuid.equals(characteristic.getUuid())) {
+            return false;
+        }
+        // one list per sensor, not one per notification
+        synchronized (sensor.packed_readings) {
+            if (sensor.decodePacked(characteristic.getValue(), System.currentTimeMillis() / 1000, sensor.packed_readings) > 0) {
+                relayAll(sensor, sensor.packed_readings);
+            }
+            sensor.packed_readings.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Relay a batch of readings from one sensor
+     *
+     * @param sensor   sensor the readings came from
+     * @param readings readings to relay, oldest first
+     */
+    private void relayAll(Sensor sensor, List<Reading> readings) {
+        DeadBandFilter filter = sensor.filter;
+        long now = System.currentTimeMillis();
+        int relayed = 0;
+        for (Reading reading : readings) {
+            if (reading.sequence_number == 0 || !sensor.sequences.accept(reading.device_id, reading.sequence_number)) {
+                reading.recycle();
+                continue;
+            }
+            relayed++;
+            if (filter == null || filter.accept(reading.device_id, reading.value, now)) {
+                relay(sensor, reading);
+            } else {
+                reading.recycle();
             }
         }
+        mConnections.onReadings(sensor.device_mac, relayed);
+    }
 
+    /**
+     * Queue a reading to be relayed, through the sensor's aggregation stage if it has one
+     *
+     * @param sensor  sensor the reading came from
+     * @param reading reading to relay
+     */
+    private void relay(Sensor sensor, Reading reading) {
+        WindowAggregator aggregator = sensor.aggregator;
+        if (aggregator != null) {
+            aggregator.add(reading);
+        } else {
+            mRelayQueue.offer(reading);
+        }
+    }
+
+    /**
+     * Readings leaving the aggregation stages
+     */
+    private final WindowAggregator.Sink mAggregateSink = new WindowAggregator.Sink() {
         @Override
-        protected Void doInBackground(String... params) {
-            try {
-                String data = params[0];
+        public void onReading(Reading reading) {
+            mRelayQueue.offer(reading);
+        }
+    };
 
-                if (inRange) {
-                    // in range, send data to server
-                    Socket socket = new Socket(HOST, PORT);
-                    DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+    /**
+     * Handle batches that could not be delivered, store them locally and wait for the connection to restore
+     */
+    private final RelayBatcher.FlushListener mFlushListener = new RelayBatcher.FlushListener() {
+        @Override
+        public void onFlushFailed(List<Reading> readings) {
+            Log.i(TAG, "Connection is down");
+            storeInDatabase(readings);
+            connectionLost();
+        }
+    };
 
-                    Log.i(TAG, "SENDING DATA: " + data);
-                    String message = "Sending data... \n" + data;
-                    setStatus(thyeway.xyz.activitytracker.Status.STATUS_OK, message.substring(0, message.length()-1));
-//
-                    outputStream.writeBytes(data);
-                    socket.close();
-                } else {
-                    // not in range, store to database
-                    storeInDatabase(data);
-                    String message = "Connection down, storing to database... \n" + data;
-                    setStatus(thyeway.xyz.activitytracker.Status.STATUS_WARNING, message.substring(0, message.length()-1));
+    /**
+     * Mark the connection as down, only the first failure after the connection went down
+     * starts the reconnect scheduler
+     */
+    private void connectionLost() {
+        boolean stateChange;
+        synchronized (this) {
+            stateChange = inRange;
+            inRange = false;
+        }
+        if (stateChange) {
+            mReconnect.start();
+        }
+    }
 
-                }
-            } catch (Exception e) {
-                Log.i(TAG, "Connection is down");
-                // connection went down
-                inRange = false;
-                storeInDatabase(params[0]);
-                stateChange = true;
+    /**
+     * store the sensor data locally in the database
+     *
+     * @param reading reading to store in database
+     */
+    private void storeInDatabase(Reading reading) {
+        storeInDatabase(Collections.singletonList(reading));
+    }
+
+    /**
+     * store a batch of sensor data locally in the database, in a single transaction
+     *
+     * @param readings readings to store in database
+     */
+    private void storeInDatabase(List<Reading> readings) {
+        try {
+            Log.i(TAG, "INTO DATABASE: " + readings.size() + " readings");
+            mStore.insert(readings);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return number of readings waiting to be relayed
+     */
+    public int getQueueDepth() {
+        return mRelayQueue == null ? 0 : mRelayQueue.depth();
+    }
+
+    /**
+     * @return number of GATT read cycles in flight across all sensors
+     */
+    public int getReadsInFlight() {
+        return mPoller.inFlight();
+    }
+
+    /**
+     * @return number of GATT operations failed for lack of a callback, across the connected devices
+     */
+    public long getGattTimeouts() {
+        long timeouts = 0;
+        synchronized (mGattQueues) {
+            for (GattOperationQueue queue : mGattQueues.values()) {
+                timeouts += queue.getTimeouts();
             }
-            return null;
         }
+        return timeouts;
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            // if there was a state change (connection went down),
-            // start waiting for connection to restore
-            if (stateChange) {
-                verify_connection();
+    /**
+     * @return average latency of GATT reads across the connected devices, in milliseconds
+     */
+    public double getGattReadLatency() {
+        double total = 0;
+        int queues = 0;
+        synchronized (mGattQueues) {
+            for (GattOperationQueue queue : mGattQueues.values()) {
+                total += queue.getAverageLatency(GattOperationQueue.READ);
+                queues++;
             }
         }
+        return queues == 0 ? 0 : total / queues;
     }
 
     /**
-     * Process to verify if the connection to an access point has been restored
+     * @return readings received per second from each tracked sensor, by MAC, to size deployments by
      */
-    private class VerifyConnection extends AsyncTask<Void, Void, Void> {
+    public Map<String, Double> getSampleRates() {
+        return mConnections.getSampleRates();
+    }
 
-        private TaskCallback listener;
+    /**
+     * @return fraction of the time each tracked sensor was connected, by MAC
+     */
+    public Map<String, Double> getConnectedShares() {
+        return mConnections.getConnectedShares();
+    }
+
+    /**
+     * @return time each tracked sensor spent reconnecting after its connection dropped, by MAC, in milliseconds
+     */
+    public Map<String, Long> getDisconnectedTimes() {
+        return mConnections.getDisconnectedTimes();
+    }
 
-        public VerifyConnection(TaskCallback listener) {
-            this.listener = listener;
+    /**
+     * @return fraction of the samples of each tracked sensor that were never received, by MAC
+     */
+    public Map<String, Double> getLossRates() {
+        HashMap<String, Double> rates = new HashMap<>();
+        for (Sensor sensor : mRegistry.sensors()) {
+            if (sensor.tracked) {
+                rates.put(sensor.device_mac, sensor.sequences.getLossRate());
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * @return fraction of the samples read from each tracked sensor that were duplicates, by MAC
+     */
+    public Map<String, Double> getDuplicateRates() {
+        HashMap<String, Double> rates = new HashMap<>();
+        for (Sensor sensor : mRegistry.sensors()) {
+            if (sensor.tracked) {
+                rates.put(sensor.device_mac, sensor.sequences.getDuplicateRate());
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * @return readings suppressed by the dead band of each tracked sensor since it was configured, by MAC
+     */
+    public Map<String, Long> getSuppressed() {
+        HashMap<String, Long> suppressed = new HashMap<>();
+        for (Sensor sensor : mRegistry.sensors()) {
+            DeadBandFilter filter = sensor.filter;
+            if (sensor.tracked && filter != null) {
+                suppressed.put(sensor.device_mac, filter.suppressed());
+            }
+        }
+        return suppressed;
+    }
+
+    /**
+     * @return number of readings discarded because the relay queue was full
+     */
+    public long getQueueDropped() {
+        return mRelayQueue == null ? 0 : mRelayQueue.dropped();
+    }
+
+    /**
+     * Relay data to an access point (Pi), readings are taken off the relay queue by its worker thread
+     */
+    private final RelayQueue.Listener mQueueListener = new RelayQueue.Listener() {
+
+        // the status line shows a sample of the readings, not every one of them
+        private long mLastStatus;
+
+        private boolean statusDue() {
+            long now = System.currentTimeMillis();
+            if (now - mLastStatus < STATUS_INTERVAL) {
+                return false;
+            }
+            mLastStatus = now;
+            return true;
+        }
+
+        @Override
+        public void onReading(Reading reading) {
+            if (inRange) {
+                // in range, hand the data to the batcher, failed batches come back through mFlushListener
+                if (statusDue()) {
+                    String data = reading.toString();
+                    Log.i(TAG, "SENDING DATA: " + data);
+                    String message = "Sending data... \n" + data;
+                    setStatus(thyeway.xyz.activitytracker.Status.STATUS_OK, message.substring(0, message.length()-1));
+                }
+
+                // the batcher recycles the reading once its batch is settled
+                mBatcher.append(reading);
+            } else {
+                // not in range, store to database
+                if (statusDue()) {
+                    String message = "Connection down, storing to database... \n" + reading.toString();
+                    setStatus(thyeway.xyz.activitytracker.Status.STATUS_WARNING, message.substring(0, message.length()-1));
+                }
+                storeInDatabase(reading);
+                reading.recycle();
+            }
         }
 
         @Override
-        protected Void doInBackground(Void... params) {
+        public void onOverflow(Reading reading) {
+            storeInDatabase(reading);
+            reading.recycle();
+        }
+    };
+
+    /**
+     * Attempts to restore the connection to an access point (Pi), scheduled with backoff by mReconnect
+     */
+    private final ReconnectScheduler.Listener mReconnectListener = new ReconnectScheduler.Listener() {
+
+        @Override
+        public boolean onAttempt() {
             try {
                 Log.i(TAG, "Connecting to " + HOST + ":" + PORT);
-                // try connecting
-                Socket socket = new Socket(HOST, PORT);
+                // try connecting, the socket is kept open for the database export and live relay
+                mRelay.open();
 
                 // the code below will only process if the connection is re-established
                 Log.i(TAG, "Connection is back up!");
                 inRange = true;
-                socket.close();
-
-                // sends callback notify that connection has been restored
-                listener.taskStatus(inRange);
+                return true;
 
             } catch (Exception e) {
                 // connection is still down
                 Log.i(TAG, "Connection is still down ... ");
-
-                inRange = false;
-                // sends callback to notify that connection is still down
-                listener.taskStatus(inRange);
+                setStatus(thyeway.xyz.activitytracker.Status.STATUS_WARNING, "Connection down, reconnect attempt "
+                        + mReconnect.getAttemptCount() + " failed");
 
                 // recheck connection, do this here because it takes time for connection to be re-established
                 if(!NetworkUtil.isConnected(getApplicationContext())) {
                     Log.i(TAG, "connection is down, trying to connect to access point");
                     NetworkUtil.connectAccessPoint(getApplicationContext());
                 }
+                return false;
             }
-            return null;
         }
-    }
+
+        @Override
+        public void onRestored() {
+            // connection has been restored, send all locally stored data back to the access point (Pi)
+            exportLocalDatabase();
+        }
+    };
 
     /**
-     * Process to relay locally stored data to an access point (Pi)
+     * Wake the reconnect scheduler early when the phone joins a suitable network
      */
-    private class ExportLocalDatabase extends AsyncTask<Void, Void, Void> {
+    private final BroadcastReceiver mNetworkReceiver = new BroadcastReceiver() {
         @Override
-        protected Void doInBackground(Void... params) {
-
-            SQLiteDatabase db = dbHelper.getReadableDatabase();
-            // basically SELECT * FROM TABLE_PACKETS
-            Cursor c = db.query(DatabaseEntry.TABLE_PACKETS, null, null, null, null, null, null);
-
-            c.moveToFirst();
-            try {
-                // for each entry, sends it off
-                while (c.moveToNext()) {
-                    Socket socket = new Socket(HOST, PORT);
-                    DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-
-                    String data = c.getString(0);
-                    Log.i(TAG, "SENDING DATABASE DATA: " + data);
-                    String message = "Sending database data... \n" + data;
-                    setStatus(thyeway.xyz.activitytracker.Status.STATUS_OK, message.substring(0, message.length()-1));
-
-                    outputStream.writeBytes(data);
-                    socket.close();
+        public void onReceive(Context context, Intent intent) {
+            if (mReconnect != null && NetworkUtil.isConnected(context)) {
+                mReconnect.wake();
+            }
+        }
+    };
 
-                    // delete the entry from the database after sending
-                    int numRows = db.delete(DatabaseEntry.TABLE_PACKETS, DatabaseEntry.PACKET_DATA + "=?", new String[]{data});
-                    Log.i(TAG, "Deleted " + numRows + " rows.");
+    /**
+     * Relay locally stored data to an access point (Pi), runs on the reconnect scheduler thread
+     */
+    private void exportLocalDatabase() {
+        setStatus(thyeway.xyz.activitytracker.Status.STATUS_OK, "Sending database data...");
+
+        try {
+            // pages of stored packets go out over the shared connection, and are deleted once confirmed
+            int sent = new BacklogDrain(mStore, mRelay, BacklogDrain.DEFAULT_PAGE_SIZE).drain();
+            Log.i(TAG, "Sent all " + sent + " packets");
+        } catch (Exception e) {
+            // connection went down again, whatever was not sent stays in the database
+            Log.i(TAG, "Connection is down");
+            connectionLost();
+        }
+    }
 
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                c.close();
-            }
+    /**
+     * @return number of attempts made to restore the connection, 0 while it is up
+     */
+    public int getReconnectAttempts() {
+        return mReconnect == null || !mReconnect.isRunning() ? 0 : mReconnect.getAttemptCount();
+    }
 
-            Log.i(TAG, "Sent all packets");
+    /**
+     * @return number of batches sent to the access point and waiting to be confirmed
+     */
+    public int getUnacknowledged() {
+        return mRelay == null ? 0 : mRelay.getUnacknowledged();
+    }
 
-            return null;
-        }
+    /**
+     * @return time of the next attempt to restore the connection, in milliseconds since epoch, 0 if none
+     */
+    public long getNextReconnectTime() {
+        return mReconnect == null ? 0 : mReconnect.getNextAttemptTime();
     }
 
-}
\ No newline at end of file
+}
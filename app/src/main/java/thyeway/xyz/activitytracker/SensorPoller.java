@@ -0,0 +1,173 @@
+package thyeway.xyz.activitytracker;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service-wide scheduler for polling the tracked sensors
+ * <p/>
+ * A single thread runs one poll job per sensor, each at its own interval. A poll starts a read
+ * cycle over GATT, which stays in flight until readFinished() is called from the GATT callback.
+ * A sensor never has more than one read cycle in flight, and the number of read cycles in flight
+ * across all sensors is capped; a poll that finds no room is skipped until its next tick.
+ */
+public class SensorPoller {
+
+    /**
+     * Starts a read cycle on a sensor, called on the poller thread
+     */
+    public interface Target {
+
+        /**
+         * @return true if a read cycle was started, false if there was nothing to read
+         */
+        boolean startRead();
+    }
+
+    // debug use
+    private static final String TAG = "SensorPoller";
+
+    private final ScheduledExecutorService mExecutor;
+
+    // poll jobs and read cycles in flight, by sensor MAC
+    private final HashMap<String, ScheduledFuture<?>> mJobs = new HashMap<>();
+    private final HashSet<String> mInFlight = new HashSet<>();
+    private int mMaxInFlight;
+    private long mSkipped;
+
+    private class Job implements Runnable {
+        final String mac;
+        final Target target;
+
+        Job(String mac, Target target) {
+            this.mac = mac;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            synchronized (SensorPoller.this) {
+                if (!mJobs.containsKey(mac) || mInFlight.contains(mac) || mInFlight.size() >= mMaxInFlight) {
+                    mSkipped++;
+                    return;
+                }
+                mInFlight.add(mac);
+            }
+
+            boolean started = false;
+            try {
+                started = target.startRead();
+            } catch (RuntimeException e) {
+                // a failing sensor must not kill the poller thread, it would stop every other sensor
+                Log.e(TAG, "Poll failed for " + mac, e);
+            } finally {
+                if (!started) {
+                    readFinished(mac);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param maxInFlight maximum number of read cycles in flight across all sensors
+     */
+    public SensorPoller(int maxInFlight) {
+        this(maxInFlight, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    /**
+     * @param maxInFlight maximum number of read cycles in flight across all sensors
+     * @param executor    runs the poll jobs, shut down with the poller
+     */
+    public SensorPoller(int maxInFlight, ScheduledExecutorService executor) {
+        mExecutor = executor;
+        setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * @param maxInFlight maximum number of read cycles in flight across all sensors
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        mMaxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Start polling a sensor, replaces the sensor's current job if it has one
+     *
+     * @param mac      MAC of the sensor
+     * @param interval time between polls, in milliseconds
+     * @param target   starts a read cycle on the sensor
+     */
+    public synchronized void start(String mac, long interval, Target target) {
+        cancel(mac);
+        Log.i(TAG, "Polling " + mac + " every " + interval + "ms");
+        mJobs.put(mac, mExecutor.scheduleAtFixedRate(new Job(mac, target), 0, Math.max(1, interval), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Mark the read cycle of a sensor as done, making room for the next poll
+     *
+     * @param mac MAC of the sensor
+     */
+    public synchronized void readFinished(String mac) {
+        mInFlight.remove(mac);
+    }
+
+    /**
+     * Stop polling a sensor, e.g. because it disconnected or is no longer tracked
+     *
+     * @param mac MAC of the sensor
+     */
+    public synchronized void cancel(String mac) {
+        ScheduledFuture<?> job = mJobs.remove(mac);
+        if (job != null) {
+            job.cancel(false);
+            Log.i(TAG, "Stopped polling " + mac);
+        }
+        mInFlight.remove(mac);
+    }
+
+    /**
+     * @param mac MAC of the sensor
+     * @return true if the sensor is being polled
+     */
+    public synchronized boolean isPolling(String mac) {
+        return mJobs.containsKey(mac);
+    }
+
+    /**
+     * @return number of sensors being polled
+     */
+    public synchronized int jobCount() {
+        return mJobs.size();
+    }
+
+    /**
+     * @return number of read cycles in flight
+     */
+    public synchronized int inFlight() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @return number of polls skipped because a read cycle was still in flight or the cap was reached
+     */
+    public synchronized long skipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Stop every poll job, the poller cannot be used afterwards
+     */
+    public synchronized void shutdown() {
+        mJobs.clear();
+        mInFlight.clear();
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,210 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sensors known to the app, shared by the scanner and the logging service
+ * <p/>
+ * Sensors are keyed by their MAC as a 48-bit number, so "AA:BB:CC:DD:EE:FF" and
+ * "aa:bb:cc:dd:ee:ff" are the same sensor, and a lookup from a GATT or scan callback is a
+ * single hash table probe instead of a scan over every known sensor.
+ * <p/>
+ * The table is keyed by the primitive key, so lookups box nothing and allocate nothing. Sensors
+ * are added rarely and looked up on every callback, so the table is copied on write and read
+ * without locking.
+ */
+public final class SensorRegistry {
+
+    private static final SensorRegistry INSTANCE = new SensorRegistry();
+
+    /**
+     * Open addressing hash table, never modified once published
+     */
+    private static final class Table {
+        final long[] keys;
+        final Sensor[] sensors;     // null for a free slot
+        final int size;
+
+        Table(int capacity, int size) {
+            this.keys = new long[capacity];
+            this.sensors = new Sensor[capacity];
+            this.size = size;
+        }
+
+        Sensor get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); sensors[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return sensors[i];
+                }
+            }
+            return null;
+        }
+
+        void put(Sensor sensor) {
+            int mask = keys.length - 1;
+            int i = slot(sensor.mac_key, mask);
+            while (sensors[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = sensor.mac_key;
+            sensors[i] = sensor;
+        }
+
+        private static int slot(long key, int mask) {
+            // MACs of one vendor share their upper bits, mix them all in
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    // at most half full, so probes stay short and always find a free slot
+    private volatile Table mTable = new Table(16, 0);
+
+    private SensorRegistry() {
+    }
+
+    /**
+     * @return the registry shared across the app
+     */
+    public static SensorRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Parse a MAC written as six hex pairs, separated by ':' or '-', in either case
+     *
+     * @param mac MAC to parse, e.g. "5C:CF:7F:01:02:03"
+     * @return the MAC as a 48-bit number
+     * @throws IllegalArgumentException if the MAC is malformed
+     */
+    public static long parseMac(String mac) {
+        long key = 0;
+        int digits = 0;
+        for (int i = 0; i < mac.length(); i++) {
+            char c = mac.charAt(i);
+            int digit = Character.digit(c, 16);
+            if (digit >= 0) {
+                key = (key << 4) | digit;
+                digits++;
+            } else if ((c != ':' && c != '-') || digits % 2 != 0) {
+                throw new IllegalArgumentException("Malformed MAC: " + mac);
+            }
+        }
+        if (digits != 12) {
+            throw new IllegalArgumentException("Malformed MAC: " + mac);
+        }
+        return key;
+    }
+
+    /**
+     * @param key MAC as a 48-bit number
+     * @return the MAC in the form Android uses, upper case and separated by ':'
+     */
+    public static String formatMac(long key) {
+        char[] mac = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (key >> (40 - 8 * i)) & 0xFF;
+            mac[i * 3] = Character.toUpperCase(Character.forDigit(octet >> 4, 16));
+            mac[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0xF, 16));
+            if (i < 5) {
+                mac[i * 3 + 2] = ':';
+            }
+        }
+        return new String(mac);
+    }
+
+    /**
+     * @param key MAC as a 48-bit number
+     * @return the sensor with that MAC, or null if it is not known
+     */
+    public Sensor get(long key) {
+        return mTable.get(key);
+    }
+
+    /**
+     * @param mac MAC of the sensor
+     * @return the sensor with that MAC, or null if it is not known
+     */
+    public Sensor get(String mac) {
+        return mTable.get(parseMac(mac));
+    }
+
+    /**
+     * @param mac MAC of the sensor
+     * @return true if a sensor with that MAC is known
+     */
+    public boolean contains(String mac) {
+        return mTable.get(parseMac(mac)) != null;
+    }
+
+    /**
+     * Register a sensor, unless one with the same MAC is already known
+     *
+     * @param sensor sensor to register
+     * @return the sensor already known with that MAC, or null if this one was registered
+     */
+    public synchronized Sensor putIfAbsent(Sensor sensor) {
+        Table table = mTable;
+        Sensor known = table.get(sensor.mac_key);
+        if (known != null) {
+            return known;
+        }
+        int capacity = table.keys.length;
+        while ((table.size + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+        Table copy = new Table(capacity, table.size + 1);
+        for (Sensor other : table.sensors) {
+            if (other != null) {
+                copy.put(other);
+            }
+        }
+        copy.put(sensor);
+        mTable = copy;
+        return null;
+    }
+
+    /**
+     * @param mac MAC of the sensor
+     * @return the sensor removed, or null if it was not known
+     */
+    public synchronized Sensor remove(String mac) {
+        Table table = mTable;
+        Sensor removed = table.get(parseMac(mac));
+        if (removed == null) {
+            return null;
+        }
+        // rebuilt rather than cleared, a free slot would cut short the probes running past it
+        Table copy = new Table(table.keys.length, table.size - 1);
+        for (Sensor other : table.sensors) {
+            if (other != null && other != removed) {
+                copy.put(other);
+            }
+        }
+        mTable = copy;
+        return removed;
+    }
+
+    /**
+     * @return snapshot of the known sensors, in no particular order
+     */
+    public List<Sensor> sensors() {
+        Table table = mTable;
+        List<Sensor> sensors = new ArrayList<>(table.size);
+        for (Sensor sensor : table.sensors) {
+            if (sensor != null) {
+                sensors.add(sensor);
+            }
+        }
+        return sensors;
+    }
+
+    /**
+     * @return number of known sensors
+     */
+    public int size() {
+        return mTable.size;
+    }
+}
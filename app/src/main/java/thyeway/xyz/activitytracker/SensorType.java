@@ -0,0 +1,141 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sensor type codes used by the binary wire format, and the matching text packet tags
+ * <p/>
+ * Codes and tags are resolved through a plain table, so the codecs load without the sensor
+ * classes, e.g. on the access point (Pi). The built-in types are in it from the start, other
+ * types are added when their SensorDescriptor is registered in SensorDescriptors. Statistics
+ * computed by WindowAggregator are sent as readings of their own: the statistic goes in the top
+ * bits of the type code, and its name is appended to the tag, e.g. "lux_mean".
+ */
+public final class SensorType {
+
+    public static final int UNKNOWN = 0;
+    public static final int LUX = 1;
+    public static final int IMU = 2;
+
+    public static final String TAG_UNKNOWN = "unknown";
+    public static final String TAG_LUX = "lux";
+    public static final String TAG_IMU = "imu";
+
+    // statistics of a window of readings, see WindowAggregator
+    public static final int STATISTIC_NONE = 0;
+    public static final int STATISTIC_MIN = 1;
+    public static final int STATISTIC_MAX = 2;
+    public static final int STATISTIC_MEAN = 3;
+    public static final int STATISTIC_COUNT = 4;
+
+    // appended to the tag of the sensor type, indexed by statistic
+    static final String[] STATISTIC_NAMES = {null, "min", "max", "mean", "count"};
+
+    // the sensor type is in the low bits of a type code, the statistic in the rest of the byte
+    private static final int STATISTIC_SHIFT = 5;
+    public static final int MAX_TYPE = (1 << STATISTIC_SHIFT) - 1;
+
+    // tags by sensor type code, each indexed by STATISTIC_*, and type codes by tag
+    private static final AtomicReferenceArray<String[]> TAGS = new AtomicReferenceArray<>(MAX_TYPE + 1);
+    private static final ConcurrentHashMap<String, Integer> TYPES = new ConcurrentHashMap<>();
+
+    static {
+        register(LUX, TAG_LUX);
+        register(IMU, TAG_IMU);
+    }
+
+    private SensorType() {
+    }
+
+    /**
+     * Add a sensor type to the table, or check it against the one already there
+     *
+     * @param type sensor type code, 1 to MAX_TYPE
+     * @param tag  text packet tag
+     * @throws IllegalArgumentException if the code or the tag is out of range or taken by another type
+     */
+    static synchronized void register(int type, String tag) {
+        if (type <= UNKNOWN || type > MAX_TYPE) {
+            throw new IllegalArgumentException("Sensor type out of range: " + type);
+        }
+        String[] known = TAGS.get(type);
+        Integer taken = TYPES.get(tag);
+        if (known != null || taken != null) {
+            if (known == null || !known[STATISTIC_NONE].equals(tag)) {
+                throw new IllegalArgumentException("Sensor type " + type + " or tag " + tag + " already taken");
+            }
+            return;
+        }
+        TYPES.put(tag, type);
+        TAGS.set(type, statisticTags(tag));
+    }
+
+    /**
+     * @param tag text packet tag of a sensor type
+     * @return the tag, then the tags of its statistics, indexed by STATISTIC_*
+     */
+    static String[] statisticTags(String tag) {
+        String[] tags = new String[STATISTIC_NAMES.length];
+        tags[STATISTIC_NONE] = tag;
+        for (int i = STATISTIC_MIN; i < tags.length; i++) {
+            tags[i] = tag + "_" + STATISTIC_NAMES[i];
+        }
+        return tags;
+    }
+
+    /**
+     * @param type      sensor type code, 1 to MAX_TYPE
+     * @param statistic STATISTIC_*
+     * @return type code of readings holding that statistic
+     */
+    public static int withStatistic(int type, int statistic) {
+        return (statistic << STATISTIC_SHIFT) | (type & MAX_TYPE);
+    }
+
+    /**
+     * @param type type code of a reading
+     * @return STATISTIC_* held by readings of that code, STATISTIC_NONE for raw readings
+     */
+    public static int statisticOf(int type) {
+        return type >>> STATISTIC_SHIFT;
+    }
+
+    /**
+     * @param type sensor type code
+     * @return text packet tag for the sensor type
+     */
+    public static String tagOf(int type) {
+        String[] tags = TAGS.get(type & MAX_TYPE);
+        int statistic = statisticOf(type);
+        if (tags == null || statistic >= tags.length) {
+            return TAG_UNKNOWN;
+        }
+        return tags[statistic];
+    }
+
+    /**
+     * @param tag text packet tag
+     * @return sensor type code for the tag
+     */
+    public static int typeOf(String tag) {
+        if (tag == null) {
+            return UNKNOWN;
+        }
+        Integer type = TYPES.get(tag);
+        if (type != null) {
+            return type;
+        }
+        int split = tag.lastIndexOf('_');
+        type = split > 0 ? TYPES.get(tag.substring(0, split)) : null;
+        if (type != null) {
+            String name = tag.substring(split + 1);
+            for (int statistic = STATISTIC_MIN; statistic < STATISTIC_NAMES.length; statistic++) {
+                if (STATISTIC_NAMES[statistic].equals(name)) {
+                    return withStatistic(type, statistic);
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,106 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Follows the 8-bit sequence numbers of a sensor to drop duplicate samples and count missed ones
+ * <p/>
+ * Each stream (a sensor's readings with the same device id) is tracked on its own. Sequence
+ * number 0 never gets this far, it is dropped as a sensor that is starting up, so the numbers go
+ * round from 255 to 1. A number equal to the last one is a sample read twice because polling
+ * outran the sensor. A number further ahead means samples were missed. One that jumps back more
+ * than half the range is taken as a restarted sensor and tracking starts over from it. Gaps of
+ * more than half the range cannot be told from a restart and are not counted.
+ */
+public class SequenceTracker {
+
+    private static final int RANGE = 255;           // 1 to 255
+    private static final int MAX_GAP = RANGE / 2;
+
+    // last sequence number by device id, 0 before the first one, grown when needed
+    private int[] mLast = new int[1];
+
+    private long mReceived;
+    private long mDuplicates;
+    private long mMissed;
+    private long mRestarts;
+
+    /**
+     * @param sequence sequence number, 1 to 255
+     * @return the sequence number of the sample after it
+     */
+    public static int next(int sequence) {
+        return sequence >= RANGE ? 1 : sequence + 1;
+    }
+
+    /**
+     * @param device_id stream of the sample
+     * @param sequence  sequence number of the sample, 1 to 255
+     * @return true for a new sample, false for a duplicate to drop
+     */
+    public synchronized boolean accept(int device_id, int sequence) {
+        if (device_id >= mLast.length) {
+            int[] last = new int[Math.max(device_id + 1, mLast.length * 2)];
+            System.arraycopy(mLast, 0, last, 0, mLast.length);
+            mLast = last;
+        }
+        int last = mLast[device_id];
+        if (last != 0) {
+            int step = ((sequence - last) % RANGE + RANGE) % RANGE;
+            if (step == 0) {
+                mDuplicates++;
+                return false;
+            }
+            if (step <= MAX_GAP) {
+                mMissed += step - 1;
+            } else {
+                mRestarts++;
+            }
+        }
+        mLast[device_id] = sequence;
+        mReceived++;
+        return true;
+    }
+
+    /**
+     * @return number of new samples
+     */
+    public synchronized long received() {
+        return mReceived;
+    }
+
+    /**
+     * @return number of samples dropped as read twice
+     */
+    public synchronized long duplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * @return number of samples the sensor sent that were never received
+     */
+    public synchronized long missed() {
+        return mMissed;
+    }
+
+    /**
+     * @return number of times the sensor appeared to restart its sequence numbers
+     */
+    public synchronized long restarts() {
+        return mRestarts;
+    }
+
+    /**
+     * @return fraction of the sensor's samples that were missed, polling too slowly if high
+     */
+    public synchronized double getLossRate() {
+        long total = mReceived + mMissed;
+        return total == 0 ? 0 : (double) mMissed / total;
+    }
+
+    /**
+     * @return fraction of the samples read that were duplicates, polling too fast if high
+     */
+    public synchronized double getDuplicateRate() {
+        long total = mReceived + mDuplicates;
+        return total == 0 ? 0 : (double) mDuplicates / total;
+    }
+}
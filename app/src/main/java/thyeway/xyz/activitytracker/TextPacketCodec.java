@@ -0,0 +1,73 @@
+package thyeway.xyz.activitytracker;
+
+/**
+ * Original text wire format, one line per reading
+ * <p/>
+ * Packet Structure: TAG, ID, Val, Seq, Timestamp, e.g. "lux 0x00 120.0 5 1481846400\n"
+ */
+public class TextPacketCodec implements PacketCodec {
+
+    // tag + hex id + float + int + long, separated by spaces
+    private static final int MAX_RECORD_LENGTH = 64;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    public byte[] preamble() {
+        return new byte[0];
+    }
+
+    @Override
+    public int maxRecordLength() {
+        return MAX_RECORD_LENGTH;
+    }
+
+    @Override
+    public int encode(Reading reading, byte[] buffer, int offset) {
+        String packet = format(reading);
+        int length = packet.length();
+        if (length > MAX_RECORD_LENGTH) {
+            // cutting it short would lose the newline and merge it with the next packet
+            return 0;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] = (byte) packet.charAt(i);
+        }
+        return length;
+    }
+
+    /**
+     * @param reading reading to be formatted
+     * @return the reading as a text packet, including the trailing newline
+     */
+    public static String format(Reading reading) {
+        StringBuilder builder = new StringBuilder(MAX_RECORD_LENGTH);
+        builder.append(reading.tag);
+        builder.append(" 0x");
+        builder.append(HEX[(reading.device_id >> 4) & 0xF]);
+        builder.append(HEX[reading.device_id & 0xF]);
+        builder.append(" ");
+        builder.append(reading.value);
+        builder.append(" ");
+        builder.append(reading.sequence_number);
+        builder.append(" ");
+        builder.append(reading.timestamp);
+        builder.append("\n");
+
+        return builder.toString();
+    }
+
+    /**
+     * @param packet text packet, with or without the trailing newline
+     * @return the reading held in the packet
+     * @throws IllegalArgumentException if the packet is malformed
+     */
+    public static Reading parse(String packet) {
+        String[] fields = packet.trim().split(" ");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Malformed packet: " + packet);
+        }
+        return new Reading(fields[0], SensorType.typeOf(fields[0]), Integer.decode(fields[1]),
+                Float.parseFloat(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4]));
+    }
+}
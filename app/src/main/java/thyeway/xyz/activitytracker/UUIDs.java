@@ -1,11 +1,25 @@
 package thyeway.xyz.activitytracker;
 
 
+import java.util.UUID;
+
+/**
+ * GATT UUIDs, parsed once so callbacks compare them with equals() instead of building strings
+ */
 public final class UUIDs {
 
-    public static final String LUX_SERVICE = "74b10000-6134-4da9-abe8-bc9e3833e943";
+    public static final UUID LUX_SERVICE = UUID.fromString("74b10000-6134-4da9-abe8-bc9e3833e943");
+
+    public static final UUID LUX_VALUE = UUID.fromString("74b10001-6134-4da9-abe8-bc9e3833e943");
+    public static final UUID LUX_SEQUENCE_NUMBER = UUID.fromString("74b10002-6134-4da9-abe8-bc9e3833e943");
+    public static final UUID LUX_DEVICE_NAME = UUID.fromString("74b10003-6134-4da9-abe8-bc9e3833e943");
+    // optional, several samples per read or notification, see LuxSensor.DESCRIPTOR
+    public static final UUID LUX_PACKED = UUID.fromString("74b10004-6134-4da9-abe8-bc9e3833e943");
+
+    public static final UUID IMU_SERVICE = UUID.fromString("74b20000-6134-4da9-abe8-bc9e3833e943");
+    // frames of 3-axis samples, see ImuSensor
+    public static final UUID IMU_SAMPLES = UUID.fromString("74b20001-6134-4da9-abe8-bc9e3833e943");
 
-    public static final String LUX_VALUE = "74b10001-6134-4da9-abe8-bc9e3833e943";
-    public static final String LUX_SEQUENCE_NUMBER = "74b10002-6134-4da9-abe8-bc9e3833e943";
-    public static final String LUX_DEVICE_NAME = "74b10003-6134-4da9-abe8-bc9e3833e943";
+    // standard Client Characteristic Configuration descriptor, turns notifications/indications on
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 }
@@ -44,6 +44,9 @@ public class ViewDeviceActivity extends AppCompatActivity {
     // maintain a queue of GATT characteristics to be read
     private Queue<BluetoothGattCharacteristic> mCharacteristicsQueue;
 
+    // readable characteristics found by service discovery, read again on every round
+    private ArrayList<BluetoothGattCharacteristic> mReadable;
+
     // maintain two set of data, we should always display the old data:
     // when receiving data, we put it in mData, once we have received everything, only we move it to mOldData
     // or else the data will never display because it is constantly updating
@@ -69,6 +72,7 @@ public class ViewDeviceActivity extends AppCompatActivity {
 
         // initialize queue
         mCharacteristicsQueue = new LinkedList<>();
+        mReadable = new ArrayList<>();
 
         // initialize arrays and link it to the listview
         mOldData = new ArrayList<>();
@@ -135,6 +139,7 @@ public class ViewDeviceActivity extends AppCompatActivity {
             //       the server.
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 List<BluetoothGattService> gattServices = mBluetoothGatt.getServices();
+                mReadable.clear();
 
                 for (BluetoothGattService s : gattServices) {
                     List<BluetoothGattCharacteristic> characteristics = s.getCharacteristics();
@@ -142,11 +147,12 @@ public class ViewDeviceActivity extends AppCompatActivity {
                         // have to take into account multiple properties, e.g. READ + NOTIFY
                         if (c.getProperties() == BluetoothGattCharacteristic.PROPERTY_READ ||
                                 c.getProperties() == (BluetoothGattCharacteristic.PROPERTY_READ + BluetoothGattCharacteristic.PROPERTY_NOTIFY)) {
-                            mCharacteristicsQueue.add(c);
+                            mReadable.add(c);
                         }
                     }
 
                 }
+                mCharacteristicsQueue.addAll(mReadable);
             }
 
             // after the queue is being populated, we perform read operation on each characteristics in the queue
@@ -166,7 +172,7 @@ public class ViewDeviceActivity extends AppCompatActivity {
                     mBluetoothGatt.readCharacteristic(mCharacteristicsQueue.poll());
                 } else {
                     // once all characteristics have been read, replace the old data with the new ones, and display them
-                    // do discoverServices again to trigger reading a new set of data
+                    // then read the same characteristics again, the services are discovered once per connection
                     runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
@@ -177,7 +183,10 @@ public class ViewDeviceActivity extends AppCompatActivity {
                             adapter.notifyDataSetChanged();
                             mData = new ArrayList<>();
 
-                            mBluetoothGatt.discoverServices();
+                            mCharacteristicsQueue.addAll(mReadable);
+                            if (mCharacteristicsQueue.size() != 0) {
+                                mBluetoothGatt.readCharacteristic(mCharacteristicsQueue.poll());
+                            }
                         }
                     });
                 }
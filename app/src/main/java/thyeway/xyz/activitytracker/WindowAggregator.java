@@ -0,0 +1,182 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.ArrayDeque;
+
+/**
+ * Per-sensor stage between the sensor and the relay queue, summarising windows of readings
+ * <p/>
+ * Every step readings of a stream (a sensor's readings with the same device id) the min, max,
+ * mean and count of its last window readings are sent as readings of their own, see SensorType.
+ * A step equal to the window gives tumbling windows, a shorter step sliding ones. The raw
+ * readings are either sent alongside the statistics or dropped.
+ * <p/>
+ * The sink is never called while the aggregator is locked, it may block, e.g. on a full relay
+ * queue, without holding up the other threads feeding the stage.
+ */
+public class WindowAggregator {
+
+    /**
+     * Receives the readings leaving the stage, may block
+     */
+    public interface Sink {
+        void onReading(Reading reading);
+    }
+
+    /**
+     * Last window values of one stream
+     */
+    private static class Stream {
+        final float[] values;
+        int head;           // next value goes here
+        int size;
+        int pending;        // readings since the last statistics were sent
+        int sequence_number;
+        long timestamp;
+        int type;
+        String[] tags;
+
+        Stream(int window) {
+            values = new float[window];
+        }
+    }
+
+    private final int mWindow;
+    private final int mStep;
+    private final boolean mKeepRaw;
+    private final Sink mSink;
+
+    // streams by device id, grown when needed
+    private Stream[] mStreams = new Stream[1];
+    private String mDeviceMac;
+
+    // readings leaving the stage, handed to the sink once the lock is released
+    private final ArrayDeque<Reading> mOutbox = new ArrayDeque<>();
+
+    /**
+     * @param window  readings summarised by each set of statistics
+     * @param step    readings between sets of statistics, window for tumbling windows
+     * @param keepRaw true to send the raw readings alongside the statistics
+     * @param sink    receives the raw readings that are kept and the statistics
+     */
+    public WindowAggregator(int window, int step, boolean keepRaw, Sink sink) {
+        if (window <= 0 || step <= 0) {
+            throw new IllegalArgumentException("Window and step must be positive: " + window + ", " + step);
+        }
+        mWindow = window;
+        mStep = Math.min(step, window);
+        mKeepRaw = keepRaw;
+        mSink = sink;
+    }
+
+    /**
+     * Take a reading, sending statistics when its stream is due
+     *
+     * @param reading raw reading, handed to the sink or recycled
+     */
+    public void add(Reading reading) {
+        synchronized (this) {
+            collect(reading);
+        }
+        drain();
+    }
+
+    private void collect(Reading reading) {
+        Stream stream = stream(reading);
+        stream.values[stream.head] = reading.value;
+        stream.head = (stream.head + 1) % mWindow;
+        stream.size = Math.min(stream.size + 1, mWindow);
+        stream.sequence_number = reading.sequence_number;
+        stream.timestamp = reading.timestamp;
+        stream.pending++;
+        mDeviceMac = reading.device_mac;
+        int device_id = reading.device_id;
+
+        if (mKeepRaw) {
+            mOutbox.addLast(reading);
+        } else {
+            reading.recycle();
+        }
+        if (stream.pending >= mStep) {
+            emit(stream, device_id);
+        }
+    }
+
+    /**
+     * Send the statistics of every partly filled window, e.g. when the sensor disconnects
+     */
+    public void flush() {
+        synchronized (this) {
+            for (int device_id = 0; device_id < mStreams.length; device_id++) {
+                Stream stream = mStreams[device_id];
+                if (stream != null && stream.pending > 0) {
+                    emit(stream, device_id);
+                }
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Hand the collected readings to the sink, one at a time, without holding the lock
+     */
+    private void drain() {
+        while (true) {
+            Reading reading;
+            synchronized (this) {
+                reading = mOutbox.pollFirst();
+            }
+            if (reading == null) {
+                return;
+            }
+            mSink.onReading(reading);
+        }
+    }
+
+    private Stream stream(Reading reading) {
+        int device_id = reading.device_id;
+        if (device_id >= mStreams.length) {
+            Stream[] streams = new Stream[Math.max(device_id + 1, mStreams.length * 2)];
+            System.arraycopy(mStreams, 0, streams, 0, mStreams.length);
+            mStreams = streams;
+        }
+        Stream stream = mStreams[device_id];
+        if (stream == null || stream.type != reading.sensor_type) {
+            stream = new Stream(mWindow);
+            stream.type = reading.sensor_type;
+            SensorDescriptor descriptor = SensorDescriptors.forType(reading.sensor_type);
+            stream.tags = descriptor != null ? descriptor.statistic_tags : SensorType.statisticTags(reading.tag);
+            mStreams[device_id] = stream;
+        }
+        return stream;
+    }
+
+    private void emit(Stream stream, int device_id) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double sum = 0;
+        int start = (stream.head - stream.size + mWindow) % mWindow;
+        for (int i = 0; i < stream.size; i++) {
+            float value = stream.values[(start + i) % mWindow];
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+
+        send(stream, device_id, SensorType.STATISTIC_MIN, min);
+        send(stream, device_id, SensorType.STATISTIC_MAX, max);
+        send(stream, device_id, SensorType.STATISTIC_MEAN, (float) (sum / stream.size));
+        send(stream, device_id, SensorType.STATISTIC_COUNT, stream.size);
+
+        stream.pending = 0;
+        if (mStep == mWindow) {
+            stream.size = 0;
+        }
+    }
+
+    private void send(Stream stream, int device_id, int statistic, float value) {
+        Reading reading = Reading.obtain(stream.tags[statistic], SensorType.withStatistic(stream.type, statistic),
+                device_id, value, stream.sequence_number, stream.timestamp);
+        reading.device_mac = mDeviceMac;
+        mOutbox.addLast(reading);
+    }
+}
@@ -0,0 +1,180 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AckedRelayTest {
+
+    private LocalRelayReceiver mReceiver;
+    private RelayConnection mConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        mReceiver = new LocalRelayReceiver();
+        mConnection = new RelayConnection("127.0.0.1", mReceiver.getPort(), 1000, 1000, new BinaryPacketCodec());
+        mConnection.setAcknowledged(true, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.shutdown();
+        mReceiver.close();
+    }
+
+    private static class CountingBatch implements SendWindow.Batch {
+        final AtomicInteger acked;
+        final AtomicInteger failed;
+        final CountDownLatch done;
+
+        CountingBatch(AtomicInteger acked, AtomicInteger failed, CountDownLatch done) {
+            this.acked = acked;
+            this.failed = failed;
+            this.done = done;
+        }
+
+        @Override
+        public void onAcked() {
+            acked.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed() {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    private int send(int sequence, SendWindow.Batch batch) throws Exception {
+        byte[] buffer = new byte[BinaryPacketCodec.RECORD_LENGTH];
+        Reading reading = new Reading(SensorType.TAG_LUX, SensorType.LUX, 0, sequence, sequence, 1481846400L + sequence);
+        int length = mConnection.getCodec().encode(reading, buffer, 0);
+        mConnection.send(buffer, 0, length, batch);
+        return length;
+    }
+
+    @Test
+    public void pipelinedBatches_areAllAcknowledgedInOrder() throws Exception {
+        int batches = 50;
+        AtomicInteger acked = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(batches);
+
+        for (int i = 0; i < batches; i++) {
+            send(i, new CountingBatch(acked, failed, done));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(batches, acked.get());
+        assertEquals(0, failed.get());
+        assertEquals(0, mConnection.getUnacknowledged());
+
+        List<Reading> received = mReceiver.getReadings();
+        assertEquals(batches, received.size());
+        for (int i = 0; i < batches; i++) {
+            assertEquals(i, received.get(i).sequence_number);
+        }
+    }
+
+    private static byte[] backlogPage(int rows, int[] length) {
+        byte[] page = new byte[rows * BinaryPacketCodec.RECORD_LENGTH];
+        BinaryPacketCodec codec = new BinaryPacketCodec();
+        for (int i = 0; i < rows; i++) {
+            Reading reading = new Reading(SensorType.TAG_LUX, SensorType.LUX, 0, 120.0f + i % 3, i, 1481846400L + i);
+            length[0] += codec.encode(reading, page, length[0]);
+        }
+        return page;
+    }
+
+    @Test
+    public void compressedBatch_isSmallerAndDecodesToSameReadings() throws Exception {
+        mConnection.setCompression(true);
+        int rows = 500;
+        int[] length = {0};
+        byte[] page = backlogPage(rows, length);
+        AtomicInteger acked = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+
+        mConnection.send(page, 0, length[0], new CountingBatch(acked, failed, done), true);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(mConnection.isCompressing());
+        assertEquals(1, acked.get());
+        List<Reading> received = mReceiver.getReadings();
+        assertEquals(rows, received.size());
+        assertEquals(rows - 1, received.get(rows - 1).sequence_number);
+        assertTrue(mReceiver.getPayloadBytes() < length[0] / 2);
+    }
+
+    @Test
+    public void refusedCompression_sendsPlainFrames() throws Exception {
+        mReceiver.setDeflate(false);
+        mConnection.setCompression(true);
+        int[] length = {0};
+        byte[] page = backlogPage(100, length);
+        AtomicInteger acked = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+
+        mConnection.send(page, 0, length[0], new CountingBatch(acked, failed, done), true);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(mConnection.isCompressing());
+        assertEquals(1, acked.get());
+        assertEquals(length[0], mReceiver.getPayloadBytes());
+    }
+
+    @Test
+    public void lostConnection_failsUnacknowledgedBatches() throws Exception {
+        mReceiver.setAcknowledge(false);
+        AtomicInteger acked = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(3);
+
+        for (int i = 0; i < 3; i++) {
+            send(i, new CountingBatch(acked, failed, done));
+        }
+        assertEquals(3, mConnection.getUnacknowledged());
+
+        mReceiver.disconnect();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, acked.get());
+        assertEquals(3, failed.get());
+        assertEquals(0, mConnection.getUnacknowledged());
+    }
+
+    @Test
+    public void reservedRoom_isNotHandedOutTwice() throws Exception {
+        SendWindow window = new SendWindow(1);
+        CountingBatch batch = new CountingBatch(new AtomicInteger(), new AtomicInteger(), new CountDownLatch(1));
+
+        window.reserve(10);
+        // nothing registered yet, but the only slot is taken
+        try {
+            window.reserve(10);
+            fail("Window overrun");
+        } catch (IOException expected) {
+        }
+        window.release();
+
+        window.reserve(10);
+        window.register(batch);
+        assertEquals(1, window.inFlight());
+        try {
+            window.reserve(10);
+            fail("Window overrun");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BinaryPacketCodecTest {
+
+    @Test
+    public void encodedStream_decodesToSameReadings() throws Exception {
+        BinaryPacketCodec codec = new BinaryPacketCodec();
+        Reading[] readings = {
+                new Reading(SensorType.TAG_LUX, SensorType.LUX, 0, 120.0f, 5, 1481846400L),
+                new Reading(SensorType.TAG_LUX, SensorType.LUX, 0x2A, 65535.0f, 255, 1481846401L)
+        };
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(codec.preamble());
+        byte[] buffer = new byte[codec.maxRecordLength()];
+        for (Reading reading : readings) {
+            stream.write(buffer, 0, codec.encode(reading, buffer, 0));
+        }
+
+        BinaryPacketDecoder decoder = new BinaryPacketDecoder(new ByteArrayInputStream(stream.toByteArray()));
+        assertEquals(BinaryPacketCodec.VERSION, decoder.readPreamble());
+        for (Reading expected : readings) {
+            Reading actual = decoder.read();
+            assertEquals(expected.toString(), actual.toString());
+        }
+        assertNull(decoder.read());
+    }
+
+    @Test
+    public void binaryRecord_isAboutHalfTheTextPacket() {
+        Reading reading = new Reading(SensorType.TAG_LUX, SensorType.LUX, 0, 120.0f, 5, 1481846400L);
+        byte[] buffer = new byte[64];
+
+        int text = new TextPacketCodec().encode(reading, buffer, 0);
+        int binary = new BinaryPacketCodec().encode(reading, buffer, 0);
+
+        assertTrue(binary * 2 <= text);
+    }
+
+    @Test
+    public void textPacket_matchesOriginalFormat() {
+        Reading reading = TextPacketCodec.parse("lux 0x00 120.0 5 1481846400\n");
+        assertEquals("lux 0x00 120.0 5 1481846400\n", TextPacketCodec.format(reading));
+    }
+
+    @Test
+    public void textPacket_tooLongIsDroppedNotCut() {
+        StringBuilder tag = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            tag.append('x');
+        }
+        Reading reading = new Reading(tag.toString(), SensorType.UNKNOWN, 0, 120.0f, 5, 1481846400L);
+        byte[] buffer = new byte[64];
+
+        assertEquals(0, new TextPacketCodec().encode(reading, buffer, 0));
+    }
+}
@@ -0,0 +1,164 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Slot sharing, priorities and reconnects of tracked sensors, on a manually advanced clock
+ */
+public class ConnectionManagerTest {
+
+    private static final String A = "5C:CF:7F:00:00:0A";
+    private static final String B = "5C:CF:7F:00:00:0B";
+    private static final String C = "5C:CF:7F:00:00:0C";
+
+    private final ManualScheduler mTimer = new ManualScheduler();
+
+    /**
+     * Connects and disconnects instantly, the way the GATT callbacks would report it
+     */
+    private static class InstantConnector implements ConnectionManager.Connector {
+        ConnectionManager manager;
+        final List<String> connects = new ArrayList<>();
+
+        @Override
+        public void connect(String mac, boolean background) {
+            synchronized (this) {
+                connects.add(mac);
+            }
+            manager.onConnected(mac);
+        }
+
+        @Override
+        public void disconnect(String mac) {
+            manager.onDisconnected(mac);
+        }
+
+        synchronized int connectsOf(String mac) {
+            int count = 0;
+            for (String connected : connects) {
+                if (connected.equals(mac)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    @Test
+    public void sensorsWithinSlots_stayConnected() throws Exception {
+        InstantConnector connector = new InstantConnector();
+        ConnectionManager manager = new ConnectionManager(connector, mTimer, 2, 20, 1000);
+        connector.manager = manager;
+
+        manager.track(A, 0);
+        manager.track(B, 0);
+        mTimer.advance(100);
+
+        assertEquals(1, connector.connectsOf(A));
+        assertEquals(1, connector.connectsOf(B));
+        assertEquals(SensorConnection.State.DISCOVERING, manager.getState(A));
+        manager.onReady(A);
+        assertEquals(SensorConnection.State.STREAMING, manager.getState(A));
+    }
+
+    @Test
+    public void extraSensors_takeTurns() throws Exception {
+        InstantConnector connector = new InstantConnector();
+        ConnectionManager manager = new ConnectionManager(connector, mTimer, 2, 20, 1000);
+        connector.manager = manager;
+
+        manager.track(A, 0);
+        manager.track(B, 0);
+        manager.track(C, 0);
+        assertEquals(2, manager.connections());
+        mTimer.advance(200);
+
+        // every sensor got several turns, never more than two at once
+        assertTrue(connector.connectsOf(A) > 1);
+        assertTrue(connector.connectsOf(B) > 1);
+        assertTrue(connector.connectsOf(C) > 1);
+        assertTrue(manager.connections() <= 2);
+    }
+
+    @Test
+    public void prioritySensor_keepsItsSlot() throws Exception {
+        InstantConnector connector = new InstantConnector();
+        ConnectionManager manager = new ConnectionManager(connector, mTimer, 2, 20, 1000);
+        connector.manager = manager;
+
+        manager.track(A, 1);
+        manager.track(B, 0);
+        manager.track(C, 0);
+        mTimer.advance(200);
+
+        assertEquals(1, connector.connectsOf(A));
+        assertEquals(SensorConnection.State.DISCOVERING, manager.getState(A));
+        assertTrue(connector.connectsOf(B) > 1);
+        assertTrue(connector.connectsOf(C) > 1);
+    }
+
+    @Test
+    public void droppedSensor_reconnectsAfterBackoff() throws Exception {
+        InstantConnector connector = new InstantConnector();
+        ConnectionManager manager = new ConnectionManager(connector, mTimer, 2, 20, 1000);
+        manager.setBackoff(500, 60000, 0);
+        connector.manager = manager;
+
+        manager.track(A, 0);
+        manager.onDisconnected(A);
+        assertEquals(SensorConnection.State.BACKOFF, manager.getState(A));
+
+        mTimer.advance(499);
+        assertEquals(SensorConnection.State.BACKOFF, manager.getState(A));
+        mTimer.advance(1);
+        assertEquals(SensorConnection.State.DISCOVERING, manager.getState(A));
+        assertEquals(2, connector.connectsOf(A));
+
+        // measured on the wall clock, which the manual one does not move
+        assertTrue(manager.getDisconnectedTimes().get(A) >= 0);
+    }
+
+    @Test
+    public void lostSensor_waitsUntilTrackedAgain() throws Exception {
+        InstantConnector connector = new InstantConnector();
+        ConnectionManager manager = new ConnectionManager(connector, mTimer, 2, 20, 1000);
+        manager.setReconnect(0, false);
+        connector.manager = manager;
+
+        manager.track(A, 0);
+        manager.onDisconnected(A);
+        assertEquals(SensorConnection.State.LOST, manager.getState(A));
+
+        manager.track(A, 0);
+        assertEquals(SensorConnection.State.DISCOVERING, manager.getState(A));
+        assertEquals(2, connector.connectsOf(A));
+    }
+
+    @Test
+    public void sensorPriority_comesFromItsDescriptor() throws Exception {
+        InstantConnector connector = new InstantConnector();
+        ConnectionManager manager = new ConnectionManager(connector, mTimer, 2, 20, 1000);
+        connector.manager = manager;
+
+        // tracked the way SensorLoggingService tracks the sensors it was given
+        Sensor[] sensors = {
+                SensorDescriptors.createSensor(UUIDs.LUX_SERVICE, "Thing", B),
+                SensorDescriptors.createSensor(UUIDs.IMU_SERVICE, "Board", A),
+                SensorDescriptors.createSensor(UUIDs.LUX_SERVICE, "Thing", C),
+        };
+        for (Sensor sensor : sensors) {
+            manager.track(sensor.device_mac, sensor.priority);
+        }
+        mTimer.advance(200);
+
+        // the IMU streams and keeps its slot, the light sensors take turns on the other one
+        assertEquals(1, connector.connectsOf(A));
+        assertTrue(connector.connectsOf(B) > 1);
+        assertTrue(connector.connectsOf(C) > 1);
+    }
+}
@@ -0,0 +1,36 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeadBandFilterTest {
+
+    @Test
+    public void absoluteBand_suppressesSmallChangesUntilHeartbeat() throws Exception {
+        DeadBandFilter filter = new DeadBandFilter(2f, false, 60000);
+
+        assertTrue(filter.accept(0, 100f, 0));
+        assertFalse(filter.accept(0, 101.5f, 1000));
+        assertFalse(filter.accept(0, 98f, 2000));
+        assertTrue(filter.accept(0, 97.9f, 3000));
+        // measured from the last value sent, not the last one seen
+        assertFalse(filter.accept(0, 99.5f, 4000));
+        assertTrue(filter.accept(0, 97.9f, 63000));
+
+        assertEquals(3, filter.passed());
+        assertEquals(3, filter.suppressed());
+    }
+
+    @Test
+    public void relativeBand_scalesWithValueAndKeepsStreamsApart() throws Exception {
+        DeadBandFilter filter = new DeadBandFilter(0.1f, true, 0);
+
+        assertTrue(filter.accept(0, 1000f, 0));
+        assertTrue(filter.accept(2, 10f, 0));
+        assertFalse(filter.accept(0, 1090f, 1000));
+        assertTrue(filter.accept(2, 11.5f, 1000));
+        // no heartbeat
+        assertFalse(filter.accept(0, 1000f, Long.MAX_VALUE));
+    }
+}
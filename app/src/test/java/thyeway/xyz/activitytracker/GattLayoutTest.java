@@ -0,0 +1,44 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encoding of the GATT layouts kept by GattCache
+ */
+public class GattLayoutTest {
+
+    private static GattLayout luxLayout(String name) {
+        return new GattLayout(UUIDs.LUX_SERVICE,
+                new UUID[]{UUIDs.LUX_VALUE, UUIDs.LUX_SEQUENCE_NUMBER},
+                new int[]{18, 2}, name);
+    }
+
+    @Test
+    public void decode_restoresEncodedLayout() throws Exception {
+        GattLayout layout = GattLayout.decode(luxLayout("Thing | 1").encode());
+
+        assertEquals(UUIDs.LUX_SERVICE, layout.service_uuid);
+        assertArrayEquals(new UUID[]{UUIDs.LUX_VALUE, UUIDs.LUX_SEQUENCE_NUMBER}, layout.characteristics);
+        assertArrayEquals(new int[]{18, 2}, layout.properties);
+        assertEquals("Thing | 1", layout.device_name);
+    }
+
+    @Test
+    public void decode_keepsMissingName() throws Exception {
+        assertNull(GattLayout.decode(luxLayout(null).encode()).device_name);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsOtherVersion() throws Exception {
+        GattLayout.decode("0|" + UUIDs.LUX_SERVICE + "||");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsMalformedProperties() throws Exception {
+        GattLayout.decode("1|" + UUIDs.LUX_SERVICE + "|" + UUIDs.LUX_VALUE + "=x|Thing");
+    }
+}
@@ -0,0 +1,203 @@
+package thyeway.xyz.activitytracker;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, timeouts and retries of queued GATT operations, on a manually advanced clock
+ */
+public class GattOperationQueueTest {
+
+    private static final long TIMEOUT = 1000;
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final FakeGatt mGatt = new FakeGatt();
+    private final GattOperationQueue mQueue = new GattOperationQueue(mGatt, mScheduler, TIMEOUT, 1);
+
+    private final BluetoothGattCharacteristic mFirst =
+            new BluetoothGattCharacteristic(UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_READ, 0);
+    private final BluetoothGattCharacteristic mSecond =
+            new BluetoothGattCharacteristic(UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_READ, 0);
+
+    /**
+     * Records what was issued, accepts everything unless told to refuse
+     */
+    private static class FakeGatt implements GattOperationQueue.Gatt {
+        final List<Object> issued = new ArrayList<>();
+        boolean refuse;
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            issued.add(characteristic);
+            return !refuse;
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            issued.add(characteristic);
+            return !refuse;
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            issued.add(descriptor);
+            return !refuse;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            issued.add(mtu);
+            return !refuse;
+        }
+    }
+
+    private static class Outcomes implements GattOperationQueue.Callback {
+        final List<Integer> statuses = new ArrayList<>();
+
+        @Override
+        public void onComplete(GattOperationQueue.Operation operation, int status) {
+            statuses.add(status);
+        }
+    }
+
+    @Test
+    public void operations_areIssuedOneAtATimeInOrder() throws Exception {
+        Outcomes outcomes = new Outcomes();
+        mQueue.read(mFirst, outcomes);
+        mQueue.read(mSecond, outcomes);
+        mQueue.requestMtu(185, outcomes);
+
+        assertEquals(1, mGatt.issued.size());
+        assertEquals(3, mQueue.size());
+
+        mQueue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onCharacteristicRead(mSecond, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onMtuChanged(BluetoothGatt.GATT_SUCCESS);
+
+        assertEquals(3, mGatt.issued.size());
+        assertSame(mFirst, mGatt.issued.get(0));
+        assertSame(mSecond, mGatt.issued.get(1));
+        assertEquals(185, mGatt.issued.get(2));
+        assertEquals(3, outcomes.statuses.size());
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void timeout_retriesThenFails() throws Exception {
+        Outcomes outcomes = new Outcomes();
+        mQueue.read(mFirst, outcomes);
+        mQueue.read(mSecond, outcomes);
+
+        mScheduler.advance(TIMEOUT);
+        assertEquals(2, mGatt.issued.size());
+        assertSame(mFirst, mGatt.issued.get(1));
+        assertTrue(outcomes.statuses.isEmpty());
+
+        mScheduler.advance(TIMEOUT);
+        assertEquals(1, outcomes.statuses.size());
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT, (int) outcomes.statuses.get(0));
+        assertEquals(1, mQueue.getRetries());
+        assertEquals(1, mQueue.getTimeouts());
+
+        // the next operation starts once the first one gave up
+        assertSame(mSecond, mGatt.issued.get(2));
+    }
+
+    @Test
+    public void lateCallback_ofAbandonedAttemptIsIgnored() throws Exception {
+        Outcomes outcomes = new Outcomes();
+        mQueue.read(mFirst, outcomes);
+        mScheduler.advance(TIMEOUT);
+        assertEquals(2, mGatt.issued.size());
+
+        // answers the first attempt, not the retry
+        mQueue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        assertTrue(outcomes.statuses.isEmpty());
+        assertEquals(1, mQueue.getStaleCallbacks());
+
+        mQueue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, outcomes.statuses.size());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, (int) outcomes.statuses.get(0));
+
+        // the timeout of the completed retry no longer fires
+        mScheduler.advance(TIMEOUT);
+        assertEquals(1, outcomes.statuses.size());
+        assertEquals(0, mQueue.getTimeouts());
+    }
+
+    @Test
+    public void lostCallback_doesNotStallLaterOperations() throws Exception {
+        Outcomes outcomes = new Outcomes();
+        mQueue.read(mFirst, outcomes);
+        mScheduler.advance(TIMEOUT);
+
+        // the first attempt never calls back, the retry's callback cannot be told from it
+        mQueue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        mScheduler.advance(TIMEOUT);
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT, (int) outcomes.statuses.get(0));
+
+        // the next read of the same characteristic is not mistaken for a late one
+        mQueue.read(mFirst, outcomes);
+        mQueue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(2, outcomes.statuses.size());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, (int) outcomes.statuses.get(1));
+    }
+
+    @Test
+    public void lostCallback_isSkippedAtMostOncePerOperation() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mGatt, mScheduler, TIMEOUT, 3);
+        Outcomes outcomes = new Outcomes();
+        queue.read(mFirst, outcomes);
+        mScheduler.advance(TIMEOUT);
+        queue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        mScheduler.advance(TIMEOUT);
+
+        // the third attempt's callback completes the read
+        assertEquals(3, mGatt.issued.size());
+        queue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, outcomes.statuses.size());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, (int) outcomes.statuses.get(0));
+        assertEquals(1, queue.getStaleCallbacks());
+    }
+
+    @Test
+    public void refusedOperation_isRetriedAfterAShortWait() throws Exception {
+        Outcomes outcomes = new Outcomes();
+        mGatt.refuse = true;
+        mQueue.read(mFirst, outcomes);
+        mGatt.refuse = false;
+
+        mScheduler.advance(TIMEOUT / 2);
+        assertEquals(2, mGatt.issued.size());
+
+        // nothing was abandoned, so the first callback belongs to the retry
+        mQueue.onCharacteristicRead(mFirst, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, outcomes.statuses.size());
+        assertEquals(0, mQueue.getStaleCallbacks());
+    }
+
+    @Test
+    public void close_cancelsCurrentAndPending() throws Exception {
+        Outcomes outcomes = new Outcomes();
+        mQueue.read(mFirst, outcomes);
+        mQueue.read(mSecond, outcomes);
+        mQueue.close();
+
+        assertEquals(2, outcomes.statuses.size());
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, (int) outcomes.statuses.get(0));
+        assertEquals(0, mScheduler.pending());
+
+        mQueue.read(mFirst, outcomes);
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, (int) outcomes.statuses.get(2));
+        assertEquals(1, mGatt.issued.size());
+    }
+}
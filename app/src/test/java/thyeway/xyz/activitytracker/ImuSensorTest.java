@@ -0,0 +1,103 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding and bulk forwarding of the IMU's packed frames
+ */
+public class ImuSensorTest {
+
+    // samples per frame at the default MTU of 247: (247 - 3 - 1) / 6
+    private static final int FRAME_SAMPLES = 40;
+
+    private final ImuSensor mSensor = new ImuSensor("Board", "5C:CF:7F:00:00:10");
+
+    /**
+     * @return a frame of count samples starting at sequence, x = i, y = -i, z = 4096 (1 g)
+     */
+    private static byte[] frame(int sequence, int count) {
+        byte[] value = new byte[1 + 6 * count];
+        value[0] = (byte) sequence;
+        for (int i = 0; i < count; i++) {
+            int base = 1 + 6 * i;
+            putShort(value, base, i);
+            putShort(value, base + 2, -i);
+            putShort(value, base + 4, 4096);
+        }
+        return value;
+    }
+
+    private static void putShort(byte[] value, int offset, int number) {
+        value[offset] = (byte) number;
+        value[offset + 1] = (byte) (number >> 8);
+    }
+
+    @Test
+    public void decodePacked_forwardsInBulk() throws Exception {
+        List<Reading> readings = new ArrayList<>();
+
+        assertEquals(UUIDs.IMU_SAMPLES, mSensor.packed_uuid);
+        assertEquals(0, mSensor.decodePacked(frame(254, 10), 1000, readings));
+        assertTrue(readings.isEmpty());
+        assertEquals(3 * 30, mSensor.decodePacked(frame(9, 20), 1001, readings));
+
+        // first sample of the first frame, then the wrap past 255
+        assertEquals(254, readings.get(0).sequence_number);
+        assertEquals(ImuSensor.AXIS_X, readings.get(0).device_id);
+        assertEquals(ImuSensor.AXIS_Z, readings.get(2).device_id);
+        assertEquals(1f, readings.get(2).value, 0f);
+        assertEquals(255, readings.get(3).sequence_number);
+        assertEquals(-1f / 4096, readings.get(4).value, 0f);
+        assertEquals(1, readings.get(6).sequence_number);
+        assertEquals(1000, readings.get(0).timestamp);
+        assertEquals(1001, readings.get(3 * 10).timestamp);
+        assertEquals("5C:CF:7F:00:00:10", readings.get(0).device_mac);
+
+        assertEquals(0, mSensor.flushPacked(readings));
+    }
+
+    @Test
+    public void flushPacked_handsOverHeldSamples() throws Exception {
+        List<Reading> readings = new ArrayList<>();
+
+        assertEquals(0, mSensor.decodePacked(frame(1, 5), 1000, readings));
+        assertEquals(3 * 5, mSensor.flushPacked(readings));
+        assertEquals(5, readings.get(3 * 4).sequence_number);
+        assertEquals(0, mSensor.getOverwritten());
+    }
+
+    @Test
+    public void decodePacked_throughput() throws Exception {
+        // a minute of 100 Hz frames, a few times over
+        int frames = 60 * 100 / FRAME_SAMPLES * 20;
+        byte[][] synthetic = new byte[frames][];
+        for (int i = 0; i < frames; i++) {
+            synthetic[i] = frame(1 + (i * FRAME_SAMPLES) % 255, FRAME_SAMPLES);
+        }
+        List<Reading> readings = new ArrayList<>();
+
+        long decoded = 0;
+        long start = System.nanoTime();
+        for (byte[] value : synthetic) {
+            decoded += mSensor.decodePacked(value, 1000, readings);
+            for (Reading reading : readings) {
+                reading.recycle();
+            }
+            readings.clear();
+        }
+        decoded += mSensor.flushPacked(readings);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+
+        assertEquals(3L * frames * FRAME_SAMPLES, decoded);
+        assertEquals(0, mSensor.getOverwritten());
+        // one sensor produces 100 samples of 3 axes per second, ask for 100 times that so only a
+        // hot path gone badly wrong fails, not a slow or busy test machine
+        long rate = decoded * 1000000000L / elapsed;
+        assertTrue("Decoded " + rate + " readings/s", rate > 100 * 100 * SampleRing.AXES);
+    }
+}
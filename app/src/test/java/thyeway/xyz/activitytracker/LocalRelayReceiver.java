@@ -0,0 +1,173 @@
+package thyeway.xyz.activitytracker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Stand-in for the access point (Pi) side of the acknowledged binary protocol, on a local port
+ * Accepts compressed frames unless told otherwise.
+ */
+class LocalRelayReceiver implements Runnable {
+
+    private final ServerSocket mServer;
+    private final Thread mThread;
+    private final List<Reading> mReadings = new ArrayList<>();
+    private volatile boolean mAcknowledge = true;
+    private volatile boolean mDeflate = true;
+    private long mPayloadBytes;
+    private volatile Socket mSocket;
+
+    LocalRelayReceiver() throws IOException {
+        mServer = new ServerSocket(0);
+        mThread = new Thread(this, "LocalRelayReceiver");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * @param acknowledge false to receive frames without ever confirming them
+     */
+    void setAcknowledge(boolean acknowledge) {
+        mAcknowledge = acknowledge;
+    }
+
+    /**
+     * @param deflate false to refuse compressed frames in the handshake
+     */
+    void setDeflate(boolean deflate) {
+        mDeflate = deflate;
+    }
+
+    /**
+     * @return bytes of frame payload received, as sent on the wire
+     */
+    synchronized long getPayloadBytes() {
+        return mPayloadBytes;
+    }
+
+    synchronized List<Reading> getReadings() {
+        return new ArrayList<>(mReadings);
+    }
+
+    /**
+     * Drop the current connection, as a restarting Pi would
+     */
+    void disconnect() throws IOException {
+        Socket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    void close() throws IOException {
+        mServer.close();
+        disconnect();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Socket socket = mServer.accept();
+                mSocket = socket;
+                try {
+                    serve(socket);
+                } catch (IOException e) {
+                    // connection dropped, wait for the next one
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            // server closed
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+
+        new BinaryPacketDecoder(input).readPreamble();
+        byte[] hello = new byte[RelayProtocol.HELLO_LENGTH];
+        input.readFully(hello);
+        int offered = RelayProtocol.parseHello(hello);
+        if (offered < 0) {
+            throw new IOException("Bad hello");
+        }
+        int accepted = RelayProtocol.FLAG_ACK | (mDeflate ? offered & RelayProtocol.FLAG_DEFLATE : 0);
+        output.write(RelayProtocol.hello(accepted));
+        output.flush();
+
+        byte[] preamble = new BinaryPacketCodec().preamble();
+        while (true) {
+            int type = input.readUnsignedByte();
+            if (type != RelayProtocol.MESSAGE_FRAME && type != RelayProtocol.MESSAGE_DEFLATE_FRAME) {
+                throw new IOException("Expected a frame");
+            }
+            if (type == RelayProtocol.MESSAGE_DEFLATE_FRAME && (accepted & RelayProtocol.FLAG_DEFLATE) == 0) {
+                throw new IOException("Compressed frame was not agreed on");
+            }
+            long id = input.readLong();
+            byte[] frame = new byte[input.readInt()];
+            input.readFully(frame);
+            synchronized (this) {
+                mPayloadBytes += frame.length;
+            }
+            if (type == RelayProtocol.MESSAGE_DEFLATE_FRAME) {
+                frame = inflate(frame);
+            }
+            byte[] payload = new byte[preamble.length + frame.length];
+            System.arraycopy(preamble, 0, payload, 0, preamble.length);
+            System.arraycopy(frame, 0, payload, preamble.length, frame.length);
+
+            // the payload holds plain binary records, decode them as a stream of their own
+            BinaryPacketDecoder decoder = new BinaryPacketDecoder(new ByteArrayInputStream(payload));
+            Reading reading;
+            while ((reading = decoder.read()) != null) {
+                synchronized (this) {
+                    mReadings.add(reading);
+                }
+            }
+
+            if (mAcknowledge) {
+                output.writeByte(RelayProtocol.MESSAGE_ACK);
+                output.writeLong(id);
+                output.flush();
+            }
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                inflated.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame");
+        } finally {
+            inflater.end();
+        }
+        return inflated.toByteArray();
+    }
+}
@@ -0,0 +1,46 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of the light sensor's single and packed characteristics
+ */
+public class LuxSensorTest {
+
+    private final LuxSensor mSensor = new LuxSensor("Thing", "5C:CF:7F:00:00:01");
+
+    @Test
+    public void updateData_decodesUnsignedValues() throws Exception {
+        mSensor.updateData(UUIDs.LUX_SEQUENCE_NUMBER, new byte[]{(byte) 0xFE});
+        assertFalse(mSensor.isComplete());
+        mSensor.updateData(UUIDs.LUX_VALUE, new byte[]{0x01, (byte) 0x90});
+        assertTrue(mSensor.isComplete());
+
+        Reading reading = mSensor.createReading(1000);
+        assertEquals(254, reading.sequence_number);
+        assertEquals(400f, reading.value, 0f);
+        assertEquals("5C:CF:7F:00:00:01", reading.device_mac);
+    }
+
+    @Test
+    public void decodePacked_readsEveryWholeSample() throws Exception {
+        List<Reading> readings = new ArrayList<>();
+        byte[] value = {
+                1, 0x00, 0x10,
+                2, (byte) 0xFF, (byte) 0xFF,
+                3, 0x00     // cut short by the MTU, ignored
+        };
+
+        assertEquals(2, mSensor.decodePacked(value, 1000, readings));
+        assertEquals(1, readings.get(0).sequence_number);
+        assertEquals(16f, readings.get(0).value, 0f);
+        assertEquals(2, readings.get(1).sequence_number);
+        assertEquals(65535f, readings.get(1).value, 0f);
+        assertEquals(1000, readings.get(1).timestamp);
+    }
+}
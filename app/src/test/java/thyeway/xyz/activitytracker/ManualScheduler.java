@@ -0,0 +1,216 @@
+package thyeway.xyz.activitytracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduled executor on a virtual clock, tasks only run when a test calls advance()
+ * <p/>
+ * Due tasks run on the calling thread, earliest first, so timing tests need no sleeps.
+ */
+class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final List<Task<?>> mTasks = new ArrayList<>();
+    private long mNow;
+    private long mSequence;
+    private boolean mShutdown;
+
+    private class Task<V> implements ScheduledFuture<V> {
+        final Callable<V> callable;
+        final long period;      // 0 for a one-shot task
+        final long sequence;
+        long time;
+        boolean cancelled;
+        boolean done;
+        V result;
+        Throwable failure;
+
+        Task(Callable<V> callable, long time, long period) {
+            this.callable = callable;
+            this.time = time;
+            this.period = period;
+            this.sequence = mSequence++;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            synchronized (ManualScheduler.this) {
+                return unit.convert(time - mNow, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (ManualScheduler.this) {
+                if (done || cancelled) {
+                    return false;
+                }
+                cancelled = true;
+                mTasks.remove(this);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public V get() throws ExecutionException {
+            if (!done) {
+                throw new IllegalStateException("Not run yet, advance the scheduler first");
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws ExecutionException {
+            return get();
+        }
+    }
+
+    /**
+     * @return current virtual time, in milliseconds
+     */
+    synchronized long now() {
+        return mNow;
+    }
+
+    /**
+     * @return number of tasks waiting to run
+     */
+    synchronized int pending() {
+        return mTasks.size();
+    }
+
+    /**
+     * Move the clock forward, running every task that falls due on the way
+     *
+     * @param millis milliseconds to move forward
+     */
+    void advance(long millis) {
+        long target;
+        synchronized (this) {
+            target = mNow + millis;
+        }
+        while (true) {
+            Task<?> next;
+            synchronized (this) {
+                next = null;
+                for (Task<?> task : mTasks) {
+                    if (task.time <= target && (next == null || task.time < next.time
+                            || (task.time == next.time && task.sequence < next.sequence))) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    mNow = target;
+                    return;
+                }
+                mNow = Math.max(mNow, next.time);
+                mTasks.remove(next);
+            }
+            run(next);
+        }
+    }
+
+    private <V> void run(Task<V> task) {
+        try {
+            task.result = task.callable.call();
+        } catch (Throwable e) {
+            task.failure = e;
+        }
+        synchronized (this) {
+            if (task.period > 0 && !task.cancelled && task.failure == null && !mShutdown) {
+                task.time += task.period;
+                mTasks.add(task);
+            } else {
+                task.done = true;
+            }
+        }
+    }
+
+    private synchronized <V> Task<V> add(Callable<V> callable, long delay, long period) {
+        Task<V> task = new Task<>(callable, mNow + Math.max(0, delay), period);
+        if (!mShutdown) {
+            mTasks.add(task);
+        }
+        return task;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(Executors.callable(command), unit.toMillis(delay), 0);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(callable, unit.toMillis(delay), 0);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return add(Executors.callable(command), unit.toMillis(initialDelay), Math.max(1, unit.toMillis(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        // tasks take no virtual time, so a fixed delay is a fixed rate
+        return scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mShutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        mShutdown = true;
+        mTasks.clear();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+}
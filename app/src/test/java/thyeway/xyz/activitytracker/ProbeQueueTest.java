@@ -0,0 +1,101 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Probe slots, timeouts and the cache of devices that are not sensors, on a manually advanced clock
+ */
+public class ProbeQueueTest {
+
+    private static final String FIRST = "5C:CF:7F:00:00:01";
+    private static final String SECOND = "5C:CF:7F:00:00:02";
+    private static final String THIRD = "5C:CF:7F:00:00:03";
+
+    private final ManualScheduler mTimer = new ManualScheduler();
+
+    private static class RecordingProber implements ProbeQueue.Prober {
+        final List<String> probed = new ArrayList<>();
+        final List<String> cancelled = new ArrayList<>();
+
+        @Override
+        public void probe(String mac) {
+            probed.add(mac);
+        }
+
+        @Override
+        public void cancel(String mac) {
+            cancelled.add(mac);
+        }
+    }
+
+    @Test
+    public void probes_runTwoAtATime() throws Exception {
+        RecordingProber prober = new RecordingProber();
+        ProbeQueue probes = new ProbeQueue(prober, mTimer, 2, 10000, 60000);
+
+        assertTrue(probes.offer(FIRST));
+        assertTrue(probes.offer(SECOND));
+        assertTrue(probes.offer(THIRD));
+        // already queued
+        assertFalse(probes.offer(FIRST));
+        assertEquals(2, probes.probing());
+        assertEquals(1, probes.pending());
+
+        probes.finished(FIRST, true);
+        assertEquals(3, prober.probed.size());
+        assertEquals(THIRD, prober.probed.get(2));
+    }
+
+    @Test
+    public void notASensor_isNotProbedAgain() throws Exception {
+        RecordingProber prober = new RecordingProber();
+        ProbeQueue probes = new ProbeQueue(prober, mTimer, 2, 10000, 60000);
+
+        probes.offer(FIRST);
+        probes.finished(FIRST, false);
+        assertFalse(probes.offer(FIRST));
+        assertEquals(1, probes.skipped());
+
+        // a sensor that went away can be probed again
+        probes.offer(SECOND);
+        probes.finished(SECOND, true);
+        assertTrue(probes.offer(SECOND));
+    }
+
+    @Test
+    public void failedProbe_isNotRemembered() throws Exception {
+        RecordingProber prober = new RecordingProber();
+        ProbeQueue probes = new ProbeQueue(prober, mTimer, 1, 10000, 60000);
+
+        probes.offer(FIRST);
+        probes.offer(SECOND);
+        probes.failed(FIRST);
+        assertEquals(SECOND, prober.probed.get(1));
+
+        assertTrue(probes.offer(FIRST));
+        assertEquals(0, probes.skipped());
+    }
+
+    @Test
+    public void slowProbe_isCancelled() throws Exception {
+        RecordingProber prober = new RecordingProber();
+        ProbeQueue probes = new ProbeQueue(prober, mTimer, 1, 50, 60000);
+
+        probes.offer(FIRST);
+        probes.offer(SECOND);
+        mTimer.advance(49);
+        assertTrue(prober.cancelled.isEmpty());
+
+        mTimer.advance(1);
+        assertEquals(FIRST, prober.cancelled.get(0));
+        assertEquals(SECOND, prober.probed.get(1));
+        // a late answer of the cancelled probe changes nothing
+        probes.finished(FIRST, false);
+        assertTrue(probes.offer(FIRST));
+    }
+}
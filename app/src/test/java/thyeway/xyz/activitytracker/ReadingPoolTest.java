@@ -0,0 +1,34 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reuse of readings through Reading.obtain() and recycle()
+ */
+public class ReadingPoolTest {
+
+    @Test
+    public void obtain_reusesRecycledReading() throws Exception {
+        Reading first = Reading.obtain("lux", SensorType.LUX, 0, 1.5f, 1, 100);
+        first.device_mac = "5C:CF:7F:01:02:03";
+        first.recycle();
+
+        Reading second = Reading.obtain("lux", SensorType.LUX, 2, 3.5f, 7, 200);
+        assertSame(first, second);
+        assertEquals(2, second.device_id);
+        assertEquals(3.5f, second.value, 0f);
+        assertEquals(7, second.sequence_number);
+        assertEquals(200, second.timestamp);
+        assertNull(second.device_mac);
+        second.recycle();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recycle_rejectsDoubleRecycle() throws Exception {
+        Reading reading = Reading.obtain("lux", SensorType.LUX, 0, 1.5f, 1, 100);
+        reading.recycle();
+        reading.recycle();
+    }
+}
@@ -0,0 +1,112 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Building sensor types from descriptors, and finding them in the registry
+ */
+public class SensorDescriptorTest {
+
+    private static final UUID SERVICE = UUID.fromString("0000aaa0-0000-1000-8000-00805f9b34fb");
+    private static final UUID VALUE = UUID.fromString("0000aaa1-0000-1000-8000-00805f9b34fb");
+    private static final UUID PACKED = UUID.fromString("0000aaa2-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void fieldLayout_decodesSignedLittleEndianScaled() throws Exception {
+        FieldLayout layout = FieldLayout.unsigned(1, 2).signed().littleEndian().scaled(0.5f, 10f);
+        byte[] value = {0x7F, (byte) 0xFE, (byte) 0xFF};
+
+        assertTrue(layout.fits(value, 0));
+        assertFalse(layout.fits(value, 1));
+        assertEquals(-2, layout.decodeInt(value, 0));
+        assertEquals(9f, layout.decode(value, 0), 0f);
+    }
+
+    @Test
+    public void descriptorSensor_decodesWithoutSequenceCharacteristic() throws Exception {
+        SensorDescriptor descriptor = new SensorDescriptor.Builder(30, "test", SERVICE)
+                .deviceId(3)
+                .value(VALUE, FieldLayout.unsigned(0, 2).signed().scaled(0.01f, 0f))
+                .packed(PACKED, 4, FieldLayout.unsigned(0, 2), FieldLayout.unsigned(2, 2).signed())
+                .build();
+        Sensor sensor = descriptor.create("Thing", "5C:CF:7F:00:00:02");
+
+        assertEquals("[TEST] Thing", sensor.device_name);
+        assertTrue(sensor.gatt_characteristics.contains(PACKED));
+        assertFalse(sensor.isComplete());
+        sensor.updateData(VALUE, new byte[]{(byte) 0xFF, (byte) 0x9C});
+        assertTrue(sensor.isComplete());
+        Reading reading = sensor.createReading(1000);
+        assertEquals("test", reading.tag);
+        assertEquals(30, reading.sensor_type);
+        assertEquals(3, reading.device_id);
+        assertEquals(-1f, reading.value, 1e-6f);
+
+        List<Reading> readings = new ArrayList<>();
+        assertEquals(1, sensor.decodePacked(new byte[]{0x01, 0x00, (byte) 0x80, 0x00, 0x02}, 2000, readings));
+        assertEquals(256, readings.get(0).sequence_number);
+        assertEquals(-32768f, readings.get(0).value, 0f);
+    }
+
+    @Test
+    public void descriptorSensor_numbersFramedSamplesFromTheHeader() throws Exception {
+        SensorDescriptor descriptor = new SensorDescriptor.Builder(30, "test", SERVICE)
+                .packedFrames(PACKED, 1, FieldLayout.unsigned(0, 1), 2, FieldLayout.unsigned(0, 1), FieldLayout.unsigned(1, 1))
+                .build();
+        Sensor sensor = descriptor.create("Thing", "5C:CF:7F:00:00:07");
+
+        List<Reading> readings = new ArrayList<>();
+        assertEquals(4, sensor.decodePacked(new byte[]{(byte) 0xFF, 1, 2, 3, 4, 5}, 2000, readings));
+        assertEquals(255, readings.get(0).sequence_number);
+        assertEquals(0, readings.get(0).device_id);
+        assertEquals(1, readings.get(1).device_id);
+        assertEquals(2f, readings.get(1).value, 0f);
+        // wrapped past 255, the trailing byte is not a whole sample
+        assertEquals(1, readings.get(2).sequence_number);
+        assertEquals(4f, readings.get(3).value, 0f);
+    }
+
+    @Test
+    public void registry_findsLuxByServiceTypeAndTag() throws Exception {
+        assertSame(LuxSensor.DESCRIPTOR, SensorDescriptors.get(UUIDs.LUX_SERVICE));
+        assertTrue(SensorDescriptors.services().contains(UUIDs.LUX_SERVICE));
+        assertTrue(SensorDescriptors.createSensor(UUIDs.LUX_SERVICE, "Thing", "5C:CF:7F:00:00:03") instanceof LuxSensor);
+        assertNull(SensorDescriptors.createSensor(SERVICE, "Thing", "5C:CF:7F:00:00:04"));
+        assertEquals(SensorType.TAG_LUX, SensorType.tagOf(SensorType.LUX));
+        assertEquals(SensorType.LUX, SensorType.typeOf(SensorType.TAG_LUX));
+        assertEquals(SensorType.UNKNOWN, SensorType.typeOf("nothing"));
+    }
+
+    @Test
+    public void sensorType_checksRegisteredTypesAgainstItsTable() throws Exception {
+        // the built-in types are known without their descriptors
+        SensorType.register(SensorType.LUX, SensorType.TAG_LUX);
+        try {
+            SensorType.register(SensorType.LUX, "other");
+            fail("Type code taken twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            SensorType.register(29, SensorType.TAG_IMU);
+            fail("Tag taken twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals("lux_mean", SensorType.tagOf(SensorType.withStatistic(SensorType.LUX, SensorType.STATISTIC_MEAN)));
+    }
+
+    @Test
+    public void registry_givesSensorsTheirPollInterval() throws Exception {
+        Sensor imu = SensorDescriptors.createSensor(UUIDs.IMU_SERVICE, "Board", "5C:CF:7F:00:00:05");
+        Sensor lux = SensorDescriptors.createSensor(UUIDs.LUX_SERVICE, "Thing", "5C:CF:7F:00:00:06");
+
+        assertEquals(ImuSensor.POLL_INTERVAL, imu.poll_interval);
+        // the interval from settings
+        assertEquals(0, lux.poll_interval);
+    }
+}
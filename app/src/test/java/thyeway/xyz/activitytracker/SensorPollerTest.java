@@ -0,0 +1,92 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Poll scheduling and the read cycle cap, on a manually advanced clock
+ */
+public class SensorPollerTest {
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final SensorPoller mPoller = new SensorPoller(2, mScheduler);
+
+    @After
+    public void tearDown() {
+        mPoller.shutdown();
+    }
+
+    private static class CountingTarget implements SensorPoller.Target {
+        final AtomicInteger started = new AtomicInteger();
+
+        @Override
+        public boolean startRead() {
+            started.incrementAndGet();
+            return true;
+        }
+    }
+
+    @Test
+    public void readsInFlight_areCappedAcrossSensors() throws Exception {
+        CountingTarget[] targets = {new CountingTarget(), new CountingTarget(), new CountingTarget()};
+        for (int i = 0; i < targets.length; i++) {
+            mPoller.start("sensor" + i, 10, targets[i]);
+        }
+        mScheduler.advance(200);
+
+        // no read cycle ever finishes, so each sensor started at most one and only two got a slot
+        int started = 0;
+        for (CountingTarget target : targets) {
+            assertTrue(target.started.get() <= 1);
+            started += target.started.get();
+        }
+        assertEquals(2, started);
+        assertEquals(2, mPoller.inFlight());
+        assertTrue(mPoller.skipped() > 0);
+    }
+
+    @Test
+    public void cancel_releasesSlotAndStopsJob() throws Exception {
+        CountingTarget first = new CountingTarget();
+        CountingTarget second = new CountingTarget();
+        CountingTarget third = new CountingTarget();
+        mPoller.start("first", 10, first);
+        mPoller.start("second", 10, second);
+        mScheduler.advance(100);
+        mPoller.start("third", 10, third);
+        mScheduler.advance(100);
+        assertEquals(0, third.started.get());
+
+        mPoller.cancel("first");
+        mScheduler.advance(10);
+
+        assertFalse(mPoller.isPolling("first"));
+        assertEquals(1, third.started.get());
+        assertEquals(2, mPoller.jobCount());
+    }
+
+    @Test
+    public void start_pollsAtTheGivenInterval() throws Exception {
+        CountingTarget target = new CountingTarget();
+        mPoller.start("sensor", 250, target);
+
+        mScheduler.advance(0);
+        assertEquals(1, target.started.get());
+        mPoller.readFinished("sensor");
+        mScheduler.advance(249);
+        assertEquals(1, target.started.get());
+        mScheduler.advance(1);
+        assertEquals(2, target.started.get());
+    }
+
+    @Test
+    public void restart_replacesJob() {
+        mPoller.start("sensor", 1000, new CountingTarget());
+        mPoller.start("sensor", 1000, new CountingTarget());
+        assertEquals(1, mPoller.jobCount());
+    }
+}
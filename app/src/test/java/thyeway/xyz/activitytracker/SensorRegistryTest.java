@@ -0,0 +1,61 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorRegistryTest {
+
+    @Test
+    public void parseMac_ignoresCaseAndSeparator() {
+        long key = SensorRegistry.parseMac("5C:CF:7F:0A:1B:2C");
+        assertEquals(0x5CCF7F0A1B2CL, key);
+        assertEquals(key, SensorRegistry.parseMac("5c:cf:7f:0a:1b:2c"));
+        assertEquals(key, SensorRegistry.parseMac("5C-CF-7F-0A-1B-2C"));
+        assertEquals("5C:CF:7F:0A:1B:2C", SensorRegistry.formatMac(key));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseMac_rejectsShortMac() {
+        SensorRegistry.parseMac("5C:CF:7F:0A:1B");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseMac_rejectsMisplacedSeparator() {
+        SensorRegistry.parseMac("5:CCF:7F:0A:1B:2C");
+    }
+
+    @Test
+    public void registry_findsSensorByAnyCase() {
+        SensorRegistry registry = SensorRegistry.getInstance();
+        Sensor sensor = new LuxSensor("test", "5C:CF:7F:00:00:01");
+        assertNull(registry.putIfAbsent(sensor));
+        assertSame(sensor, registry.putIfAbsent(new LuxSensor("test", "5c:cf:7f:00:00:01")));
+        assertSame(sensor, registry.get("5c:cf:7f:00:00:01"));
+        assertSame(sensor, registry.remove("5C:CF:7F:00:00:01"));
+        assertFalse(registry.contains("5C:CF:7F:00:00:01"));
+    }
+
+    @Test
+    public void registry_growsAndShrinksWithoutLosingSensors() {
+        SensorRegistry registry = SensorRegistry.getInstance();
+        int before = registry.size();
+        Sensor[] sensors = new Sensor[100];
+        for (int i = 0; i < sensors.length; i++) {
+            sensors[i] = new LuxSensor("test", SensorRegistry.formatMac(0x5CCF7F100000L + i * 0x100L));
+            assertNull(registry.putIfAbsent(sensors[i]));
+        }
+        assertEquals(before + sensors.length, registry.size());
+
+        for (int i = 0; i < sensors.length; i += 2) {
+            assertSame(sensors[i], registry.remove(sensors[i].device_mac));
+        }
+        for (int i = 0; i < sensors.length; i++) {
+            assertSame(i % 2 == 0 ? null : sensors[i], registry.get(sensors[i].mac_key));
+        }
+        for (int i = 1; i < sensors.length; i += 2) {
+            registry.remove(sensors[i].device_mac);
+        }
+        assertEquals(before, registry.size());
+    }
+}
@@ -0,0 +1,49 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SequenceTrackerTest {
+
+    private final SequenceTracker mTracker = new SequenceTracker();
+
+    @Test
+    public void accept_dropsDuplicatesAndCountsGaps() throws Exception {
+        assertTrue(mTracker.accept(0, 10));
+        assertFalse(mTracker.accept(0, 10));
+        assertTrue(mTracker.accept(0, 11));
+        assertTrue(mTracker.accept(0, 14));
+
+        assertEquals(3, mTracker.received());
+        assertEquals(1, mTracker.duplicates());
+        assertEquals(2, mTracker.missed());
+        assertEquals(2.0 / 5, mTracker.getLossRate(), 1e-9);
+        assertEquals(1.0 / 4, mTracker.getDuplicateRate(), 1e-9);
+    }
+
+    @Test
+    public void accept_wrapsFrom255To1() throws Exception {
+        assertTrue(mTracker.accept(0, 254));
+        assertTrue(mTracker.accept(0, 255));
+        assertTrue(mTracker.accept(0, 1));
+        assertTrue(mTracker.accept(0, 3));
+
+        assertEquals(1, mTracker.missed());
+        assertEquals(0, mTracker.restarts());
+    }
+
+    @Test
+    public void accept_tracksStreamsApartAndResyncsOnRestart() throws Exception {
+        assertTrue(mTracker.accept(0, 200));
+        assertTrue(mTracker.accept(2, 200));
+        assertFalse(mTracker.accept(2, 200));
+        assertTrue(mTracker.accept(0, 201));
+
+        // far behind the last number, the sensor started over
+        assertTrue(mTracker.accept(0, 100));
+        assertEquals(1, mTracker.restarts());
+        assertEquals(0, mTracker.missed());
+        assertFalse(mTracker.accept(0, 100));
+    }
+}
@@ -0,0 +1,97 @@
+package thyeway.xyz.activitytracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WindowAggregatorTest {
+
+    private final List<Reading> mSent = new ArrayList<>();
+
+    private final WindowAggregator.Sink mSink = new WindowAggregator.Sink() {
+        @Override
+        public void onReading(Reading reading) {
+            mSent.add(reading);
+        }
+    };
+
+    private static Reading lux(float value, int sequence) {
+        Reading reading = Reading.obtain(SensorType.TAG_LUX, SensorType.LUX, 0, value, sequence, 1000 + sequence);
+        reading.device_mac = "5C:CF:7F:00:00:20";
+        return reading;
+    }
+
+    @Test
+    public void tumbling_replacesReadingsWithStatistics() throws Exception {
+        WindowAggregator aggregator = new WindowAggregator(4, 4, false, mSink);
+        for (int i = 1; i <= 9; i++) {
+            aggregator.add(lux(i, i));
+        }
+
+        // two full windows, the ninth reading waits for the next one
+        assertEquals(8, mSent.size());
+        assertEquals("lux_min", mSent.get(0).tag);
+        assertEquals(1f, mSent.get(0).value, 0f);
+        assertEquals(4f, mSent.get(1).value, 0f);
+        assertEquals(2.5f, mSent.get(2).value, 0f);
+        assertEquals(4f, mSent.get(3).value, 0f);
+        assertEquals(4, mSent.get(3).sequence_number);
+        assertEquals(1004, mSent.get(3).timestamp);
+        assertEquals("5C:CF:7F:00:00:20", mSent.get(3).device_mac);
+        assertEquals(6.5f, mSent.get(6).value, 0f);
+
+        aggregator.flush();
+        assertEquals(12, mSent.size());
+        assertEquals(9f, mSent.get(10).value, 0f);
+        assertEquals(1f, mSent.get(11).value, 0f);
+    }
+
+    @Test
+    public void sliding_keepsReadingsAlongside() throws Exception {
+        WindowAggregator aggregator = new WindowAggregator(4, 2, true, mSink);
+        for (int i = 1; i <= 6; i++) {
+            aggregator.add(lux(i, i));
+        }
+
+        // 6 readings, and statistics after readings 2, 4 and 6
+        assertEquals(6 + 3 * 4, mSent.size());
+        Reading last = mSent.get(mSent.size() - 2);
+        assertEquals(SensorType.TAG_LUX + "_mean", last.tag);
+        assertEquals(4.5f, last.value, 0f);
+        assertEquals(4f, mSent.get(mSent.size() - 1).value, 0f);
+    }
+
+    @Test
+    public void sink_isCalledWithoutTheLock() throws Exception {
+        final WindowAggregator[] aggregator = new WindowAggregator[1];
+        final int[] calls = new int[1];
+        aggregator[0] = new WindowAggregator(2, 2, true, new WindowAggregator.Sink() {
+            @Override
+            public void onReading(Reading reading) {
+                assertFalse(Thread.holdsLock(aggregator[0]));
+                calls[0]++;
+            }
+        });
+        for (int i = 1; i <= 3; i++) {
+            aggregator[0].add(lux(i, i));
+        }
+        aggregator[0].flush();
+
+        // 3 readings, statistics after reading 2 and on flush
+        assertEquals(3 + 2 * 4, calls[0]);
+    }
+
+    @Test
+    public void statisticType_roundTripsThroughTag() throws Exception {
+        int type = SensorType.withStatistic(SensorType.IMU, SensorType.STATISTIC_MAX);
+
+        assertEquals(SensorType.STATISTIC_MAX, SensorType.statisticOf(type));
+        assertEquals("imu_max", SensorType.tagOf(type));
+        assertEquals(type, SensorType.typeOf("imu_max"));
+        assertEquals(SensorType.UNKNOWN, SensorType.typeOf("imu_median"));
+        assertTrue(type <= 0xFF);
+    }
+}